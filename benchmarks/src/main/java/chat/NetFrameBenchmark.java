@@ -0,0 +1,121 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the text frame codec: parsing, encoding, the control field setters and
+ * the address field, on an RR poll and a 36-character I-frame.
+ *
+ * Usage: {@code java -jar benchmarks/target/benchmarks.jar NetFrameBenchmark -prof gc}
+ * for ops/s and the allocation rate.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NetFrameBenchmark
+{
+	private static final String MESSAGE = "Anonymous: the quick brown dinosaur";
+
+	private InetAddress inetAddress;
+	private NetFrame rr;
+	private NetFrame iFrame;
+	private String rrText;
+	private String iFrameText;
+	/**
+	 * Sequence number for the setters, so no two calls are alike.
+	 */
+	private int sequence;
+
+	@Setup
+	public void setUp() throws UnknownHostException
+	{
+		inetAddress = InetAddress.getByAddress(new byte[] {10, 0, 0, 1});
+
+		rr = new NetFrame(inetAddress, Types.SFrame, Commands.RR);
+		rr.setPollFinal(HDLCFrame.Poll);
+		iFrame = new NetFrame(inetAddress, Types.IFrame, MESSAGE);
+		iFrame.setNSS(3);
+		iFrame.setNRS(5);
+
+		rrText = rr.toString();
+		iFrameText = iFrame.toString();
+	}
+
+	@Benchmark
+	public NetFrame parseRR()
+	{
+		return new NetFrame(rrText);
+	}
+
+	@Benchmark
+	public NetFrame parseIFrame()
+	{
+		return new NetFrame(iFrameText);
+	}
+
+	@Benchmark
+	public String encodeRR()
+	{
+		return rr.toString();
+	}
+
+	@Benchmark
+	public String encodeIFrame()
+	{
+		return iFrame.toString();
+	}
+
+	/**
+	 * What the sliding window does to every I-frame it sends.
+	 */
+	@Benchmark
+	public int setControl()
+	{
+		int n = sequence++ & 7;
+		iFrame.setNSS(n);
+		iFrame.setNRS(7 - n);
+		iFrame.setPollFinal((n & 1) == 0? HDLCFrame.Poll : HDLCFrame.Final);
+		return iFrame.getNSS() + iFrame.getNRS();
+	}
+
+	/**
+	 * Address field to text, from a socket address.
+	 */
+	@Benchmark
+	public String addressToBits()
+	{
+		return StationAddress.of(inetAddress).getBits();
+	}
+
+	/**
+	 * Address field from text, as parsing a frame does.
+	 */
+	@Benchmark
+	public StationAddress addressFromBits()
+	{
+		return StationAddress.fromBits(iFrameText, 0);
+	}
+}
@@ -0,0 +1,273 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the sliding window over a simulated link: a primary sends I-frames to a secondary
+ * through a {@code LossyChannel} each way and polls it for acknowledgements, as the server does.
+ * Sweeps Go-Back-N and Selective Repeat over window sizes and bit error rates, and reports
+ * goodput and the number of retransmissions per message. Frames use the hdlc encoding with
+ * the FCS, so corrupted frames are caught and rejected.
+ * Ends by checking that Selective Repeat resent no more than Go-Back-N at any window size and
+ * bit error rate both were run with.
+ *
+ * Usage: {@code ArqBenchmark [messages] [latency ms] [bandwidth Mbit/s] [loss] [seed]}.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class ArqBenchmark
+{
+	private static final int DEFAULT_MESSAGES = 1000;
+	private static final double DEFAULT_LATENCY = 5;
+	private static final double DEFAULT_BANDWIDTH = 10;
+	private static final long DEFAULT_SEED = 42;
+	/**
+	 * Info field of every I-frame, in bytes.
+	 */
+	private static final int MESSAGE_LENGTH = 256;
+	private static final int[] WINDOWS = {1, 4, 7, 16, 32, 64};
+	private static final double[] BIT_ERROR_RATES = {0, 1e-6, 1e-5, 1e-4};
+	/**
+	 * Longest a single run may take, in milliseconds.
+	 */
+	private static final long RUN_LIMIT = 60000;
+
+	private static final StationAddress PRIMARY = StationAddress.of(0x0A000001);
+	private static final StationAddress SECONDARY = StationAddress.of(0x0A000002);
+
+	public static void main(String[] args) throws Exception
+	{
+		int messages = (args.length > 0)? Integer.parseInt(args[0]) : DEFAULT_MESSAGES;
+		double latency = (args.length > 1)? Double.parseDouble(args[1]) : DEFAULT_LATENCY;
+		double megabits = (args.length > 2)? Double.parseDouble(args[2]) : DEFAULT_BANDWIDTH;
+		double loss = (args.length > 3)? Double.parseDouble(args[3]) : 0;
+		long seed = (args.length > 4)? Long.parseLong(args[4]) : DEFAULT_SEED;
+
+		char[] text = new char[MESSAGE_LENGTH];
+		Arrays.fill(text, 'x');
+		String message = new String(text);
+
+		System.out.println(String.format("%d %d-byte messages, %.1f Mbit/s, %.1f ms one way, frame loss %.3f, seed %d",
+				messages, MESSAGE_LENGTH, megabits, latency, loss, seed));
+		System.out.println("mode window      BER   goodput (Mbit/s)   retransmitted/message   corrupted   lost");
+
+		// Retransmissions per message, by mode, window and bit error rate; NaN where not run.
+		double[][][] resent = new double[SlidingWindow.Mode.values().length][WINDOWS.length][BIT_ERROR_RATES.length];
+
+		for (SlidingWindow.Mode mode : SlidingWindow.Mode.values())
+		{
+			for (int w = 0; w < WINDOWS.length; w++)
+			{
+				Arrays.fill(resent[mode.ordinal()][w], Double.NaN);
+				if (WINDOWS[w] > SlidingWindow.maxWindowSize(mode, SlidingWindow.MAX_EXTENDED_WINDOW_LENGTH))
+					continue;
+
+				for (int b = 0; b < BIT_ERROR_RATES.length; b++)
+				{
+					resent[mode.ordinal()][w][b] = run(mode, WINDOWS[w], BIT_ERROR_RATES[b], loss, latency,
+							(long) (megabits * 1e6), message, messages, seed);
+				}
+			}
+		}
+
+		compare(resent[SlidingWindow.Mode.GO_BACK_N.ordinal()], resent[SlidingWindow.Mode.SELECTIVE_REPEAT.ordinal()]);
+	}
+
+	/**
+	 * Reports every window size and bit error rate at which Selective Repeat resent more than Go-Back-N.
+	 */
+	private static void compare(double[][] goBackN, double[][] selectiveRepeat)
+	{
+		int worse = 0;
+
+		for (int w = 0; w < WINDOWS.length; w++)
+		{
+			for (int b = 0; b < BIT_ERROR_RATES.length; b++)
+			{
+				// NaN compares false: skipped where either mode was not run.
+				if (selectiveRepeat[w][b] > goBackN[w][b])
+				{
+					System.out.println(String.format("srej resent more than gbn at window %d, BER %.0e: %.3f against %.3f",
+							WINDOWS[w], BIT_ERROR_RATES[b], selectiveRepeat[w][b], goBackN[w][b]));
+					worse++;
+				}
+			}
+		}
+
+		if (worse == 0)
+			System.out.println("srej resent no more than gbn at every window and BER.");
+	}
+
+	/**
+	 * @return the number of retransmissions per message.
+	 */
+	private static double run(SlidingWindow.Mode mode, int window, double bitErrorRate, double loss,
+			double latency, long bandwidth, String message, int messages, long seed) throws Exception
+	{
+		// Different seeds each way, so both directions do not lose the same frames.
+		final LossyChannel down = new LossyChannel(seed);
+		LossyChannel up = new LossyChannel(seed + 1);
+		for (LossyChannel link : new LossyChannel[] {down, up})
+		{
+			link.setDelay(latency, 0);
+			link.setBandwidth(bandwidth);
+		}
+
+		Connection primary = new Connection(SECONDARY, up.getInputStream(), down.getOutputStream());
+		final Connection secondary = new Connection(PRIMARY, down.getInputStream(), up.getOutputStream());
+
+		handShake(primary, secondary, mode, window);
+
+		// Errors start once the link is up; a read outlasting a round trip means a lost frame.
+		for (LossyChannel link : new LossyChannel[] {down, up})
+		{
+			link.setLoss(loss);
+			link.setBitErrorRate(bitErrorRate);
+		}
+		double serialization = (bandwidth > 0)? 2 * MESSAGE_LENGTH * 8 * 1000.0 / bandwidth : 0;
+		long roundTrip = (long) Math.ceil(2 * latency + serialization);
+		up.setReadTimeout((int) Math.max(10, 2 * roundTrip));
+		primary.setTimeout(Math.max(20, 4 * roundTrip));
+
+		final AtomicInteger delivered = new AtomicInteger();
+		Thread receiver = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					respond(secondary, delivered);
+				}
+				catch (IOException e)
+				{
+					System.err.println(e.getMessage());
+				}
+			}
+		});
+		receiver.start();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < messages; i++)
+		{
+			primary.send(new NetFrame(SECONDARY, Types.IFrame, message));
+		}
+
+		long deadline = System.currentTimeMillis() + RUN_LIMIT;
+		while ((delivered.get() < messages || !primary.isIdle()) && System.currentTimeMillis() < deadline)
+		{
+			poll(primary);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// The secondary may still answer a poll until it reads the end of the stream.
+		down.close();
+		receiver.join();
+		up.close();
+
+		double goodput = delivered.get() * MESSAGE_LENGTH * 8 / (elapsed / 1e9) / 1e6;
+		System.out.println(String.format("%-4s %6d %8.0e %18.3f %23.3f %11d %6d%s",
+				mode, window, bitErrorRate, goodput, (double) primary.getRetransmissions() / messages,
+				down.getFramesCorrupted() + up.getFramesCorrupted(), down.getFramesLost() + up.getFramesLost(),
+				(delivered.get() < messages)? "  (gave up at " + delivered.get() + ")" : ""));
+
+		return (double) primary.getRetransmissions() / messages;
+	}
+
+	/**
+	 * SNRM(E) and UA over the clean link, as {@code DinoServe} and {@code DinoTalk} do it.
+	 */
+	private static void handShake(Connection primary, Connection secondary, SlidingWindow.Mode mode, int window)
+			throws IOException
+	{
+		primary.sendSetMode(mode, window);
+
+		FrameView snrm = secondary.readView();
+		WireFormat wireFormat = WireFormat.choose(snrm.getInfo());
+		secondary.setArqMode(SlidingWindow.Mode.fromOffer(snrm.getInfo()));
+		secondary.setExtended(snrm.getCC() == Commands.SNRME);
+		NetFrame ua = new NetFrame(PRIMARY, Types.UFrame, Commands.UA);
+		ua.setInfo(wireFormat + "," + FrameCheck.NAME);
+		secondary.send(ua);
+		secondary.setWireFormat(wireFormat);
+		secondary.setFrameCheck(true);
+
+		NetFrame accepted = primary.read();
+		primary.setWireFormat(WireFormat.choose(accepted.getInfo()));
+		primary.setFrameCheck(FrameCheck.fromOffer(accepted.getInfo()));
+	}
+
+	/**
+	 * One poll: RR with P, then every frame up to the secondary's final S-frame, or until a read times out.
+	 */
+	private static void poll(Connection primary) throws IOException
+	{
+		primary.checkTimeout();
+
+		NetFrame rr = new NetFrame(SECONDARY, Types.SFrame, Commands.RR);
+		rr.setPollFinal(HDLCFrame.Poll);
+		primary.send(rr);
+
+		try
+		{
+			FrameView response;
+			while ((response = primary.readView()) != null)
+			{
+				primary.receive(response);
+
+				if (response.getFrameType() == Types.SFrame && response.isFinal())
+					return;
+			}
+		}
+		catch (SocketTimeoutException e)
+		{
+			// The poll or its answer was lost, poll again.
+		}
+	}
+
+	/**
+	 * The secondary: takes in I-frames and answers every poll, until the link closes.
+	 */
+	private static void respond(Connection secondary, AtomicInteger delivered) throws IOException
+	{
+		FrameView frame;
+
+		while ((frame = secondary.readView()) != null)
+		{
+			switch (frame.getFrameType())
+			{
+				case IFrame:
+					if (secondary.receive(frame))
+					{
+						delivered.incrementAndGet();
+
+						// Frames held back waiting for this one
+						while (secondary.nextReleased() != null)
+							delivered.incrementAndGet();
+					}
+					break;
+
+				case SFrame:
+					secondary.receive(frame);
+					if (frame.isPoll())
+					{
+						NetFrame rr = new NetFrame(PRIMARY, Types.SFrame, Commands.RR);
+						rr.setPollFinal(HDLCFrame.Final);
+						secondary.send(rr);
+					}
+					break;
+
+				default:
+					break;
+			}
+		}
+	}
+}
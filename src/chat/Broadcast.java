@@ -0,0 +1,102 @@
+package chat;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message relayed to every station, encoded once.
+ * The info field is kept as UTF-8, which is its encoding in both wire formats;
+ * each recipient's frame only encodes its own address, control field and trailer
+ * and shares the info bytes with all the others.
+ *
+ * Immutable, apart from its segments being built on first use, so one instance can be
+ * queued for any number of connections.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class Broadcast
+{
+	private final String info;
+	/**
+	 * UTF-8 info field. Never written to once built.
+	 */
+	private final byte[] encoded;
+	/**
+	 * This message split for links that segment, each segment shared the same way.
+	 */
+	private volatile Broadcast[] segments;
+
+	Broadcast(String info)
+	{
+		this.info = info;
+		this.encoded = info.getBytes(StandardCharsets.UTF_8);
+	}
+
+	String getInfo()
+	{
+		return info;
+	}
+
+	/**
+	 * @return the size of the encoded info field, in bytes.
+	 */
+	int length()
+	{
+		return encoded.length;
+	}
+
+	/**
+	 * @return a read-only buffer over the shared info bytes, ready to be written.
+	 */
+	ByteBuffer slice()
+	{
+		return ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+	}
+
+	void writeTo(OutputStream out) throws IOException
+	{
+		out.write(encoded);
+	}
+
+	/**
+	 * Adds the shared info bytes to a frame's FCS.
+	 */
+	void update(FrameCheck check)
+	{
+		check.update(encoded, 0, encoded.length);
+	}
+
+	/**
+	 * @return the segments of this message for links that segment, headers included.
+	 * Built once, whatever the number of recipients.
+	 */
+	Broadcast[] segments()
+	{
+		Broadcast[] result = segments;
+
+		if (result == null)
+		{
+			String[] parts = Segmentation.split(info);
+			result = new Broadcast[parts.length];
+			for (int i = 0; i < parts.length; i++)
+			{
+				result[i] = new Broadcast(parts[i]);
+			}
+			segments = result;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return an I-frame to one station carrying this broadcast.
+	 */
+	NetFrame frameFor(StationAddress address)
+	{
+		return new NetFrame(address, this);
+	}
+}
@@ -0,0 +1,122 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the cost of relaying one chat message to many stations, without sockets.
+ * Compares the original fan-out, which re-parses and re-encodes the whole frame
+ * for every recipient, with a shared {@code Broadcast}, which only encodes each recipient's header.
+ *
+ * Usage: {@code BroadcastBenchmark [recipients] [rounds]}.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class BroadcastBenchmark
+{
+	private static final int DEFAULT_RECIPIENTS = 1000;
+	private static final int DEFAULT_ROUNDS = 200;
+	private static final String MESSAGE = "Anonymous: the quick brown dinosaur jumps over the lazy server";
+
+	/**
+	 * Keeps the JIT from discarding the encoded frames.
+	 */
+	private static long sink;
+
+	public static void main(String[] args) throws UnknownHostException
+	{
+		int recipients = (args.length > 0)? Integer.parseInt(args[0]) : DEFAULT_RECIPIENTS;
+		int rounds = (args.length > 1)? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+
+		InetAddress[] addresses = new InetAddress[recipients];
+		StationAddress[] stations = new StationAddress[recipients];
+		for (int i = 0; i < recipients; i++)
+		{
+			addresses[i] = InetAddress.getByAddress(new byte[] {10, 0, (byte) (i >> 8), (byte) i});
+			stations[i] = StationAddress.of(addresses[i]);
+		}
+
+		System.out.println(recipients + " recipients, " + rounds + " broadcasts");
+
+		for (WireFormat format : WireFormat.values())
+		{
+			// Warm up, then measure.
+			perCopy(addresses, format, rounds);
+			shared(stations, format, rounds);
+
+			long copies = perCopy(addresses, format, rounds);
+			long shares = shared(stations, format, rounds);
+
+			System.out.println(String.format("%-6s per-recipient copy %8.1f ns/recipient, shared %8.1f ns/recipient (%.1fx)",
+					format, (double) copies / rounds / recipients, (double) shares / rounds / recipients, (double) copies / shares));
+		}
+
+		if (sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * The original fan-out: every recipient parses the relayed frame's text and encodes its own copy.
+	 *
+	 * @return elapsed nanoseconds.
+	 */
+	private static long perCopy(InetAddress[] addresses, WireFormat format, int rounds)
+	{
+		long start = System.nanoTime();
+
+		for (int round = 0; round < rounds; round++)
+		{
+			String message = new NetFrame(addresses[0], Types.IFrame, MESSAGE).toString();
+
+			for (int i = 0; i < addresses.length; i++)
+			{
+				NetFrame frame = new NetFrame(message);
+				frame.setNSS(round);
+				frame.setNRS(i);
+				sink += format.encode(frame, null).remaining();
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * Encode once: every recipient gets its own header in front of the shared info bytes.
+	 * Formats that cannot write them as they are still skip encoding the info field again.
+	 *
+	 * @return elapsed nanoseconds.
+	 */
+	private static long shared(StationAddress[] stations, WireFormat format, int rounds)
+	{
+		long start = System.nanoTime();
+
+		for (int round = 0; round < rounds; round++)
+		{
+			Broadcast message = new Broadcast(MESSAGE);
+
+			for (int i = 0; i < stations.length; i++)
+			{
+				NetFrame frame = message.frameFor(stations[i]);
+				frame.setNSS(round);
+				frame.setNRS(i);
+				WireFormat.SplitEncoder pieces = format.splitEncoder();
+				if (pieces == null)
+				{
+					sink += format.encode(frame, null).remaining();
+					continue;
+				}
+
+				ByteBuffer header = pieces.encodeHeader(frame, message.length());
+				ByteBuffer trailer = pieces.encodeTrailer(null);
+				sink += header.remaining() + message.slice().remaining() + (trailer == null? 0 : trailer.remaining());
+			}
+		}
+
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,299 @@
+package chat;
+
+import chat.NetFrame;
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The secondary station of a chat client, without a user interface: answers the server's
+ * SNRM with UA, delivers the messages it relays and sends ours when polled, a window's worth
+ * per poll, until DISC.
+ * If the server opens the link with SABM instead, ours go out as soon as they are sent,
+ * as far as the window allows, and polls only ask for our acknowledgement.
+ *
+ * Whoever owns the connection reads frames and hands them to {@link #handle(FrameView)},
+ * so a selector thread can run many clients, as {@code LoadGenerator} does, or has a thread
+ * of its own block in {@link #receive()}, as {@code DinoTalk} does.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class ChatClient
+{
+	/**
+	 * Called from the thread handing in frames.
+	 */
+	interface Listener
+	{
+		/**
+		 * @param message a whole message relayed by the server, reassembled if it was segmented.
+		 */
+		void messageReceived(String message);
+
+		/**
+		 * The server answered our DISC, or sent its own.
+		 */
+		void disconnected();
+	}
+
+	private final Connection server;
+	private final Listener listener;
+	/**
+	 * Messages waiting for a poll, or on a balanced link for the handshake.
+	 * Any thread may add to it.
+	 */
+	private final Queue<String> outgoing = new ConcurrentLinkedQueue<String>();
+	private boolean connected = false;
+
+	ChatClient(Connection server, Listener listener)
+	{
+		this.server = server;
+		this.listener = listener;
+	}
+
+	/**
+	 * Answers an SNRM or SABM with UA, taking up the link mode, the wire format and every option
+	 * the server offers.
+	 *
+	 * @return {@code false} if the frame is neither.
+	 */
+	synchronized boolean handShake(FrameView snrm) throws IOException
+	{
+		if (snrm.getFrameType() != Types.UFrame)
+			return false;
+
+		switch (snrm.getCC())
+		{
+			case SNRM:
+			case SNRME:
+				server.setBalanced(false);
+				break;
+
+			case SABM:
+			case SABME:
+				server.setBalanced(true);
+				break;
+
+			default:
+				return false;
+		}
+
+		WireFormat wireFormat = WireFormat.choose(snrm.getInfo());
+		boolean frameCheck = FrameCheck.fromOffer(snrm.getInfo());
+		boolean segmentation = Segmentation.fromOffer(snrm.getInfo());
+		server.setArqMode(SlidingWindow.Mode.fromOffer(snrm.getInfo()));
+		server.setExtended(snrm.getCC() == Commands.SNRME || snrm.getCC() == Commands.SABME);
+
+		NetFrame ua = new NetFrame(server.getAddress(), Types.UFrame, Commands.UA);
+		String accepted = wireFormat.toString();
+		if (frameCheck)
+			accepted += "," + FrameCheck.NAME;
+		if (segmentation)
+			accepted += "," + Segmentation.NAME;
+		ua.setInfo(accepted);
+		server.send(ua);
+
+		server.setWireFormat(wireFormat);
+		server.setFrameCheck(frameCheck);
+		server.setSegmentation(segmentation);
+		connected = true;
+
+		// Whatever was sent before the link came up.
+		if (server.isBalanced())
+			transmit();
+		return true;
+	}
+
+	/**
+	 * Handles one frame from the server, the SNRM or SABM first.
+	 * Frames before it are ignored.
+	 */
+	synchronized void handle(FrameView frame) throws IOException
+	{
+		if (!connected)
+		{
+			if (!handShake(frame))
+				System.err.println("ERROR : Did not receive SNRM or SABM frame from " + server.getAddress());
+			return;
+		}
+
+		server.checkTimeout();
+
+		switch (frame.getFrameType())
+		{
+			case IFrame:
+				if (server.receive(frame))
+				{
+					deliver(server.reassemble(frame));
+
+					// Frames held back waiting for this one
+					NetFrame late;
+					while ((late = server.nextReleased()) != null)
+						deliver(server.reassemble(late));
+				}
+				// else out of sequence, REJ or SREJ goes out with the next RR
+
+				// The server polls with the last of the I-frames it had for us.
+				if (frame.isPoll())
+					answer(true);
+				break;
+
+			case SFrame:
+				server.receive(frame);
+
+				switch (frame.getCC())
+				{
+					case RR:
+					case REJ:
+						if (frame.isPoll())
+							answer(true);
+						break;
+
+					case RNR:
+						// The server cannot take our messages for now, only our acknowledgement.
+						if (frame.isPoll())
+							answer(false);
+						break;
+
+					default:
+						break;
+				}
+				break;
+
+			case UFrame:
+				if (frame.getCC() == Commands.DISC)
+				{
+					connected = false;
+					listener.disconnected();
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Answers a poll: with as many queued messages as the window has room for, F on the last one,
+	 * whose N(R) acknowledges what we received, or with RR+F if there is none to send.
+	 * The rest wait for the next poll.
+	 *
+	 * @param talk {@code false} if the server polled with RNR and only wants the acknowledgement.
+	 */
+	private void answer(boolean talk) throws IOException
+	{
+		int room = talk? server.windowRoom() : 0;
+		NetFrame[] batch = new NetFrame[room];
+		int count = 0;
+		String message;
+
+		while (count < room && (message = outgoing.poll()) != null)
+		{
+			batch[count++] = new NetFrame(server.getAddress(), Types.IFrame, message);
+		}
+
+		if (count > 0) //Something to send
+		{
+			batch[count - 1].setPollFinal(HDLCFrame.Final);
+			server.send((count == room)? batch : Arrays.copyOf(batch, count));
+			return;
+		}
+
+		NetFrame rr = new NetFrame(server.getAddress(), Types.SFrame, Commands.RR);
+		rr.setPollFinal(HDLCFrame.Final); //Send ack
+		server.send(rr);
+	}
+
+	/**
+	 * @param message {@code null} while it is still being reassembled.
+	 */
+	private void deliver(String message)
+	{
+		if (message != null)
+			listener.messageReceived(message);
+	}
+
+	/**
+	 * Blocks until more bytes come in from the server, then handles every complete frame among them.
+	 * Only the wait is outside the lock: decoding answers frames failing their FCS with REJ,
+	 * which must not interleave with {@link #send(String)} on another thread.
+	 *
+	 * @return {@code false} once the server has closed the connection.
+	 */
+	boolean receive() throws IOException
+	{
+		if (server.fill() < 0)
+			return false;
+
+		synchronized (this)
+		{
+			FrameView frame;
+			while ((frame = server.nextView()) != null)
+			{
+				handle(frame);
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Queues a message to go out at the next poll, or on a balanced link sends it right away.
+	 * Safe from any thread.
+	 */
+	synchronized void send(String message) throws IOException
+	{
+		outgoing.add(message);
+
+		if (connected && server.isBalanced())
+			transmit();
+	}
+
+	/**
+	 * Hands every queued message to the window, which sends those it has room for
+	 * and the rest as acknowledgements come in.
+	 */
+	private void transmit() throws IOException
+	{
+		String message;
+
+		while ((message = outgoing.poll()) != null)
+		{
+			server.send(new NetFrame(server.getAddress(), Types.IFrame, message));
+		}
+	}
+
+	/**
+	 * @return the number of messages still waiting for a poll.
+	 */
+	int pending()
+	{
+		return outgoing.size();
+	}
+
+	/**
+	 * Asks the server for a clean disconnect. It answers with DISC.
+	 */
+	synchronized void disconnect() throws IOException
+	{
+		NetFrame disc = new NetFrame(server.getAddress(), Types.UFrame, Commands.DISC);
+		disc.setPollFinal(HDLCFrame.Poll);
+		server.send(disc);
+	}
+
+	/**
+	 * @return {@code true} from the UA until DISC.
+	 */
+	boolean isConnected()
+	{
+		return connected;
+	}
+
+	Connection getConnection()
+	{
+		return server;
+	}
+}
@@ -1,19 +1,27 @@
 package chat;
 
-import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import chat.NetFrame;
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
 
 /**
  * Represents
- * 
+ *
  * @author Andréas K.LeF.
  * @author David Alleyn
  * @author Kent Hagerman
@@ -21,32 +29,191 @@ import chat.NetFrame;
  */
 class Connection
 {
+	private static final int BUFFER_SIZE = 8 * 1024;
+	/**
+	 * Most the receive buffer grows to, in bytes: room for the longest message {@link Segmentation}
+	 * reassembles, sent whole in text. A peer sending a longer frame is dropped.
+	 */
+	static final int MAX_BUFFER_SIZE = 2 * Segmentation.MAX_MESSAGE_LENGTH;
+	private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+	/**
+	 * Link state of a station as seen by the primary.
+	 */
+	static enum State
+	{
+		/**
+		 * SNRM sent, waiting for the station's UA.
+		 */
+		HANDSHAKE,
+		/**
+		 * Link is up and the station is not currently polled.
+		 */
+		READY,
+		/**
+		 * An RR+P poll is outstanding, waiting for the station's final frame.
+		 */
+		POLLED;
+	}
+
    /**
     * The virtual 'sliding window'
     */
 	private SlidingWindow slidingWindow;
-	private LinkedList<String> messageQueue;
+	/**
+	 * Unique for the life of the process, unlike the station address.
+	 */
+	private final int id = NEXT_ID.incrementAndGet();
+	/**
+	 * The peer's address, with its encoded forms built once.
+	 */
+	private StationAddress station;
+	/**
+	 * Broadcasts waiting to be sent to this station. Lock-free and bounded, any thread may add to it.
+	 */
+	private final OutboundQueue messageQueue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY);
+	/**
+	 * What becomes of broadcasts that do not fit in {@code messageQueue}.
+	 */
+	private OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP;
+	/**
+	 * Broadcasts refused by the full queue, since the station was last told of them.
+	 */
+	private final AtomicInteger dropped = new AtomicInteger();
+	/**
+	 * The queue went over its high-water mark: polls go out as RNR until it is back down.
+	 */
+	private boolean backedUp = false;
 	private Socket socket;
-	private BufferedReader socketReader;
-	private PrintWriter socketWriter;
-      
+	/**
+	 * Non-blocking channel backing this connection, {@code null} for stream connections.
+	 */
+	private SocketChannel channel;
+	private SelectionKey key;
+	private InputStream socketIn;
+	private OutputStream socketOut;
+	/**
+	 * Bytes received but not yet consumed as frames. Kept in read mode
+	 * and only compacted when refilled, so a {@code FrameView} stays valid until then.
+	 */
+	private ByteBuffer inbound;
+	private FrameView view;
+	/**
+	 * Encoded frames waiting for the channel to become writable.
+	 */
+	private ArrayDeque<ByteBuffer> outbound;
+	/**
+	 * Encoding used on this link, {@code TEXT} until the handshake picks another.
+	 */
+	private WireFormat wireFormat = WireFormat.TEXT;
+	/**
+	 * FCS of outgoing frames, {@code null} until the handshake turns frame checking on.
+	 */
+	private FrameCheck frameCheck;
+	/**
+	 * Reassembles segmented messages, {@code null} until the handshake turns segmentation on.
+	 */
+	private Segmentation segmentation;
+	/**
+	 * This end opened the link with SNRM, so it polls and its REJs carry P.
+	 */
+	private boolean primary = false;
+	/**
+	 * The link was opened with SABM: either end sends I-frames whenever its window allows.
+	 */
+	private boolean balanced = false;
+
+	State state = State.HANDSHAKE;
+	/**
+	 * Current delay, in milliseconds, between polls that find the station with nothing to send.
+	 */
+	int pollInterval;
+	/**
+	 * Polls in a row the station has left unanswered.
+	 */
+	int missedPolls;
+	/**
+	 * When the station was last polled, in milliseconds.
+	 */
+	long polledAt;
+	/**
+	 * Its {@code PollScheduler}'s timers for the next poll and for the response to the last one,
+	 * {@code null} until first scheduled.
+	 */
+	TimingWheel.Timer pollTimer, responseTimer;
+	/**
+	 * Fires when the oldest outstanding I-frame has gone unacknowledged for T1,
+	 * {@code null} unless the engine times retransmissions itself.
+	 */
+	TimingWheel.Timer retransmitTimer;
+	/**
+	 * Time, in milliseconds, by which the station should have answered its outstanding poll.
+	 */
+	long responseDue;
+	/**
+	 * Thread polling this station in thread-per-station mode, woken when a broadcast is queued for it.
+	 */
+	volatile Thread driver;
+
     /**
      * Create a one-time use connection for server clients.
-     * 
+     *
      * @param socket The socket to open this connection on.
      */
 	public Connection(Socket socket) throws IOException
 	{
 		this.socket = socket;
+		this.station = StationAddress.of(socket.getInetAddress());
 		this.slidingWindow = new SlidingWindow(this);
-		this.socketWriter = new PrintWriter(socket.getOutputStream(), true);
-		this.socketReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-		this.messageQueue = new LinkedList<String>();
+		// A frame may be written in pieces, flushed once complete.
+		this.socketOut = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+		this.socketIn = socket.getInputStream();
+		this.inbound = ByteBuffer.allocate(BUFFER_SIZE);
+		this.inbound.flip();
+		this.view = new FrameView();
 	}
-	
+
+	/**
+	 * Create a connection over a pair of streams instead of a socket,
+	 * e.g. a {@code LossyChannel} each way.
+	 *
+	 * @param station the peer's address.
+	 * @param in frames from the peer.
+	 * @param out frames to the peer, flushed once per frame.
+	 */
+	Connection(StationAddress station, InputStream in, OutputStream out)
+	{
+		this.station = station;
+		this.slidingWindow = new SlidingWindow(this);
+		this.socketOut = new BufferedOutputStream(out, BUFFER_SIZE);
+		this.socketIn = in;
+		this.inbound = ByteBuffer.allocate(BUFFER_SIZE);
+		this.inbound.flip();
+		this.view = new FrameView();
+	}
+
+	/**
+	 * Create a non-blocking connection driven by a {@code SelectorEngine}.
+	 *
+	 * @param channel The connected channel to open this connection on.
+	 */
+	public Connection(SocketChannel channel) throws IOException
+	{
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.station = StationAddress.of(socket.getInetAddress());
+		this.slidingWindow = new SlidingWindow(this);
+		this.inbound = ByteBuffer.allocate(BUFFER_SIZE);
+		this.inbound.flip();
+		this.view = new FrameView();
+		this.outbound = new ArrayDeque<ByteBuffer>();
+
+		channel.configureBlocking(false);
+	}
+
 	/**
      * Create a one-time use connection.
-     * 
+     *
      * @param socket The socket to open this connection on.
 	 */
 	public Connection(InetAddress serverAddress, int serverPort) throws IOException
@@ -56,88 +223,746 @@ class Connection
 
 	/**
 	 * Send a single frame through this connection.
-	 * 
+	 *
 	 * @param frame to be sent throught this connection.
+	 * @return {@code false} if the frame is an I-frame waiting for room in the window.
 	 */
-	void send(NetFrame frame) throws IOException
+	boolean send(NetFrame frame) throws IOException
 	{
-		slidingWindow.add(frame);
+		boolean sent = queue(frame);
 		slidingWindow.run();
+		return sent;
 	}
-	
+
 	/**
-	 * Send frames throught this connection.
-	 * 
+	 * Send frames throught this connection, all of them windowed before any goes out.
+	 *
 	 * @param frames to be sent through this connection.
-	 * @throws InterruptedException In case of network write failure. Network probably down.
 	 */
-	void send(NetFrame[] frames) throws InterruptedException, IOException
+	void send(NetFrame[] frames) throws IOException
 	{
         for (NetFrame frame : frames)
 		{
-    		slidingWindow.add(frame);
+    		queue(frame);
 		}
-        
+
 		slidingWindow.run();
 	}
-        
-    protected void sendSRS(NetFrame message)
+
+	/**
+	 * Adds a frame to the window. On a link that segments, an I-frame goes in as one
+	 * I-frame per segment, all of them windowed like any other. Only the last segment
+	 * carries the frame's P/F bit, so a message polls once.
+	 *
+	 * @return {@code false} if the (last) I-frame is waiting for room in the window.
+	 * @throws ProtocolException if the info field does not fit in one frame of this link.
+	 */
+	private boolean queue(NetFrame frame) throws ProtocolException
+	{
+		if (frame.getFrameType() != Types.IFrame)
+			return slidingWindow.add(frame);
+
+		if (segmentation == null)
+		{
+			Broadcast shared = frame.getBroadcast();
+			int length = (shared != null)? shared.length() : infoLength(frame.getInfo());
+
+			if (!fits(length))
+				throw new ProtocolException("Info field of " + length + " bytes, over the "
+						+ NetFrame.MAX_ENCODED_INFO_LENGTH + " an unsegmented " + wireFormat + " frame holds.");
+			return slidingWindow.add(frame);
+		}
+
+		boolean sent = true;
+		Broadcast shared = frame.getBroadcast();
+
+		if (shared != null)
+		{
+			Broadcast[] segments = shared.segments();
+
+			for (int i = 0; i < segments.length; i++)
+			{
+				NetFrame part = segments[i].frameFor(frame.getStation());
+				if (i == segments.length - 1 && frame.getPollFinal() != null)
+					part.setPollFinal(frame.getPollFinal());
+				sent = slidingWindow.add(part);
+			}
+			return sent;
+		}
+
+		String[] segments = Segmentation.split(frame.getInfo());
+
+		for (int i = 0; i < segments.length; i++)
+		{
+			NetFrame part = new NetFrame(frame.getStation(), Types.IFrame, segments[i]);
+			if (i == segments.length - 1 && frame.getPollFinal() != null)
+				part.setPollFinal(frame.getPollFinal());
+			sent = slidingWindow.add(part);
+		}
+		return sent;
+	}
+
+	/**
+	 * @return {@code false} if an info field that long overflows the length field of this link's
+	 * wire format, when sent whole.
+	 */
+	private boolean fits(int infoLength)
+	{
+		return wireFormat == WireFormat.TEXT || infoLength <= NetFrame.MAX_ENCODED_INFO_LENGTH;
+	}
+
+	/**
+	 * @return the UTF-8 size of an info field, only encoded when it may be over the limit.
+	 */
+	private static int infoLength(String info)
+	{
+		if (info == null)
+			return 0;
+
+		// At most 3 bytes per char, 4 per surrogate pair
+		if (info.length() * 3 <= NetFrame.MAX_ENCODED_INFO_LENGTH)
+			return info.length();
+
+		return info.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	/**
+	 * Puts a frame on the wire. Stream connections block until it is written,
+	 * channel connections queue whatever the socket cannot take right away.
+	 * A broadcast copy only has its header and trailer encoded, its info field is written
+	 * (and checksummed) from the shared bytes, unless the wire format must encode it whole.
+	 */
+    protected void sendSRS(NetFrame message) throws IOException
+    {
+    	WireFormat.SplitEncoder pieces = wireFormat.splitEncoder();
+    	Broadcast shared = (pieces == null)? null : message.getBroadcast();
+    	ByteBuffer bytes, trailer = null;
+
+    	if (shared == null)
+    	{
+    		bytes = wireFormat.encode(message, frameCheck);
+    	}
+    	else
+    	{
+    		bytes = pieces.encodeHeader(message, shared.length());
+
+    		if (frameCheck != null)
+    		{
+    			frameCheck.reset();
+    			frameCheck.update(bytes);
+    			shared.update(frameCheck);
+    		}
+    		trailer = pieces.encodeTrailer(frameCheck);
+    	}
+
+    	if (channel == null)
+    	{
+    		socketOut.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    		if (shared != null)
+    			shared.writeTo(socketOut);
+    		if (trailer != null)
+    			socketOut.write(trailer.array(), trailer.arrayOffset() + trailer.position(), trailer.remaining());
+    		socketOut.flush();
+    	}
+    	else
+    	{
+    		outbound.add(bytes);
+    		if (shared != null)
+    			outbound.add(shared.slice());
+    		if (trailer != null)
+    			outbound.add(trailer);
+    		flush();
+    	}
+    }
+
+    /**
+     * Runs an incoming I- or S-frame through the sliding window.
+     * Acknowledged frames are released, REJ triggers a retransmission.
+     *
+     * @return {@code true} if the frame is an in-sequence I-frame that should be delivered.
+     */
+    boolean receive(FrameView frame) throws IOException
+    {
+    	return slidingWindow.receive(frame);
+    }
+
+    /**
+     * Passes the info field of a delivered I-frame through reassembly.
+     *
+     * @return the whole message once its last segment is in, {@code null} while more are expected.
+     * Links that do not segment return the info field as is.
+     */
+    String reassemble(FrameView frame)
+    {
+    	if (segmentation == null)
+    		return frame.getInfo();
+
+    	return segmentation.add(frame.getBuffer(), frame.getInfoOffset(), frame.getInfoLength());
+    }
+
+    /**
+     * {@link #reassemble(FrameView)} for an I-frame released by {@link #nextReleased()}.
+     */
+    String reassemble(NetFrame frame)
+    {
+    	if (segmentation == null)
+    		return frame.getInfo();
+
+    	return segmentation.add(frame.getInfo());
+    }
+
+    /**
+     * @return the next I-frame released in order after a Selective Repeat gap was filled,
+     * {@code null} if there is none.
+     */
+    NetFrame nextReleased()
+    {
+    	return slidingWindow.nextReleased();
+    }
+
+    /**
+     * Selects Go-Back-N or Selective Repeat. Both ends must agree, the primary names
+     * its choice in the SNRM.
+     */
+    void setArqMode(SlidingWindow.Mode mode)
+    {
+    	slidingWindow.setMode(mode);
+    }
+
+    /**
+     * Switches to extended (modulo 128) mode after an SNRME, or back to normal mode.
+     */
+    void setExtended(boolean extended)
+    {
+    	slidingWindow.setExtended(extended);
+    	view.setExtended(extended);
+    }
+
+    /**
+     * Configures this end of the link and asks the station to do the same, in normal response mode.
+     *
+     * @param windowSize most I-frames in flight, 0 for the largest the mode allows in modulo 8.
+     */
+    void sendSetMode(SlidingWindow.Mode arqMode, int windowSize) throws IOException
+    {
+    	sendSetMode(arqMode, windowSize, false);
+    }
+
+    /**
+     * Configures this end of the link and asks the station to do the same.
+     * Sends SNRME (SABME) if the window does not fit in modulo 8, SNRM (SABM) otherwise, offering the
+     * wire formats, the FCS and segmentation and naming the retransmission mode in the info field.
+     *
+     * @param windowSize most I-frames in flight, 0 for the largest the mode allows in modulo 8.
+     * @param balanced {@code true} for asynchronous balanced mode, where the station sends without being polled.
+     */
+    void sendSetMode(SlidingWindow.Mode arqMode, int windowSize, boolean balanced) throws IOException
+    {
+    	boolean extended = windowSize > SlidingWindow.maxWindowSize(arqMode, SlidingWindow.MAX_WINDOW_LENGTH);
+    	Commands command = balanced? (extended? Commands.SABME : Commands.SABM) : (extended? Commands.SNRME : Commands.SNRM);
+
+    	NetFrame setMode = new NetFrame(station, Types.UFrame, command);
+    	setMode.setInfo(WireFormat.offer() + "," + arqMode + "," + FrameCheck.NAME + "," + Segmentation.NAME);
+
+    	primary = true;
+    	setBalanced(balanced);
+    	setArqMode(arqMode);
+    	setExtended(extended);
+    	slidingWindow.setWindowSize(windowSize);
+    	send(setMode);
+    }
+
+    /**
+     * Switches to asynchronous balanced mode after a SABM(E), or back to normal response mode.
+     */
+    void setBalanced(boolean balanced)
+    {
+    	this.balanced = balanced;
+    }
+
+    boolean isBalanced()
+    {
+    	return balanced;
+    }
+
+    /**
+     * Sends RR if I-frames received since the last frame this end sent are still unacknowledged,
+     * for balanced links, where no poll may come to ask for it.
+     */
+    void acknowledge() throws IOException
+    {
+    	if (slidingWindow.isAcknowledgementOwed())
+    		send(new NetFrame(station, Types.SFrame, Commands.RR));
+    }
+
+    /**
+     * Retransmits outstanding I-frames if the peer has not acknowledged them in time.
+     */
+    void checkTimeout() throws IOException
+    {
+    	slidingWindow.checkTimeout();
+    }
+
+    /**
+     * Like {@code Socket.setSoTimeout}: a blocking read waiting longer throws
+     * {@code SocketTimeoutException}. Connections without a socket ignore it.
+     *
+     * @param timeout in milliseconds, 0 to wait forever.
+     */
+    void setReadTimeout(int timeout) throws SocketException
+    {
+    	if (socket != null && channel == null)
+    		socket.setSoTimeout(timeout);
+    }
+
+    /**
+     * @param timeout retransmission timeout (T1), in milliseconds.
+     */
+    void setTimeout(long timeout)
+    {
+    	slidingWindow.setTimeout(timeout);
+    }
+
+    /**
+     * @return the number of I-frames sent again since the link came up.
+     */
+    int getRetransmissions()
+    {
+    	return slidingWindow.getRetransmissions();
+    }
+
+    long getTimeout()
+    {
+    	return slidingWindow.getTimeout();
+    }
+
+    /**
+     * @return milliseconds until the oldest outstanding I-frame is sent again,
+     * {@code -1} if none is outstanding.
+     */
+    long retransmitDelay()
+    {
+    	return slidingWindow.retransmitDelay();
+    }
+
+    /**
+     * @return {@code true} once half the send window is waiting for acknowledgement,
+     * or I-frames or queued broadcasts are waiting for room in it.
+     */
+    boolean isWindowFilling()
+    {
+    	return slidingWindow.backlog() > 0 || 2 * slidingWindow.outstanding() >= slidingWindow.windowSize()
+    			|| !messageQueue.isEmpty();
+    }
+
+    /**
+     * @return the number of I-frames the window would still send right away.
+     */
+    int windowRoom()
+    {
+    	return Math.max(0, slidingWindow.windowSize() - slidingWindow.outstanding() - slidingWindow.backlog());
+    }
+
+    /**
+     * @return {@code true} once every I-frame queued has been sent and acknowledged.
+     */
+    boolean isIdle()
+    {
+    	return slidingWindow.outstanding() == 0 && slidingWindow.backlog() == 0;
+    }
+
+    /**
+     * Switches the encoding of every frame sent or decoded from now on.
+     */
+    void setWireFormat(WireFormat wireFormat)
+    {
+    	this.wireFormat = wireFormat;
+    }
+
+    WireFormat getWireFormat()
+    {
+    	return wireFormat;
+    }
+
+    /**
+     * Appends an FCS to every frame sent and verifies it on every frame received from now on.
+     * Both ends must switch together, right after the UA.
+     */
+    void setFrameCheck(boolean enabled)
+    {
+    	this.frameCheck = enabled? new FrameCheck() : null;
+    	view.setFrameCheck(enabled? new FrameCheck() : null);
+    }
+
+    boolean hasFrameCheck()
+    {
+    	return frameCheck != null;
+    }
+
+    /**
+     * Splits long messages and reassembles them from now on.
+     * Both ends must switch together, right after the UA.
+     */
+    void setSegmentation(boolean enabled)
+    {
+    	this.segmentation = enabled? new Segmentation() : null;
+    }
+
+    boolean hasSegmentation()
+    {
+    	return segmentation != null;
+    }
+
+    int getId()
+    {
+    	return id;
+    }
+
+    /**
+     * @return the peer's address field, for building frames to it.
+     */
+    StationAddress getStation()
     {
-        socketWriter.println(message);
+    	return station;
     }
-        
+
     public InetAddress getAddress()
     {
-        return socket.getInetAddress();
+        return (socket == null)? station.getInetAddress() : socket.getInetAddress();
     }
-	
+
     /**
      * Check this connection for incoming messages. Blocks until something is received.
-     * @return incoming message.
+     * @return incoming message, or {@code null} once the peer has closed the connection.
      */
-	protected String read() throws IOException, SocketException
+	protected NetFrame read() throws IOException, SocketException
 	{
-		String result = socketReader.readLine();
-//		System.out.println(socket + " says:\n"+ result);
+		FrameView result = readView();
+		return (result == null)? null : result.toNetFrame();
+	}
+
+	/**
+	 * Allocation-free {@link #read()}. Blocks until something is received.
+	 *
+	 * @return this connection's view, pointed at the incoming frame and valid until the next read;
+	 * {@code null} once the peer has closed the connection.
+	 */
+	FrameView readView() throws IOException
+	{
+		FrameView result;
+
+		while ((result = nextView()) == null)
+		{
+			if (fill() < 0)
+				return null;
+		}
 
-//		NetFrame ack = new NetFrame(socket.getInetAddress(), Types.SFrame, Commands.RR);
-//		ack.setPollFinal(true);
-//      socketWriter.println(ack); // acknowledge mesage receipt..
-		
 		return result;
 	}
-	
+
+	/**
+	 * Non-blocking {@link #readView()}: reads only what the socket has already received.
+	 *
+	 * @return this connection's view, valid until the next read;
+	 * {@code null} if no complete frame has been received yet.
+	 */
+	FrameView readAvailable() throws IOException
+	{
+		FrameView result = nextView();
+
+		while (result == null && channel == null && socketIn.available() > 0)
+		{
+			fill();
+			result = nextView();
+		}
+
+		return result;
+	}
+
+	/**
+	 * Takes the next complete frame out of the receive buffer without touching the socket.
+	 *
+	 * @return the next frame, or {@code null} if no complete frame has been received yet.
+	 */
+	NetFrame nextFrame() throws IOException
+	{
+		FrameView result = nextView();
+		return (result == null)? null : result.toNetFrame();
+	}
+
+	/**
+	 * Allocation-free {@link #nextFrame()}.
+	 * Frames failing their FCS are discarded, and answered with REJ under Go-Back-N.
+	 *
+	 * @return this connection's view, valid until the next read;
+	 * {@code null} if no complete frame has been received yet.
+	 */
+	FrameView nextView() throws IOException
+	{
+		while (wireFormat.decode(inbound, view))
+		{
+			if (!view.isCorrupt())
+				return view;
+
+			slidingWindow.reject(primary);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Reads whatever the socket has into the receive buffer.
+	 * Blocks on stream connections, never blocks on channel connections.
+	 *
+	 * @return the number of bytes read, {@code -1} at end of stream.
+	 * @throws ProtocolException if the buffer is full at {@link #MAX_BUFFER_SIZE} without a whole frame in it.
+	 */
+	int fill() throws IOException
+	{
+		inbound.compact();
+
+		if (!inbound.hasRemaining())
+		{
+			if (inbound.capacity() >= MAX_BUFFER_SIZE)
+			{
+				inbound.flip();
+				throw new ProtocolException("Frame over " + MAX_BUFFER_SIZE + " bytes.");
+			}
+
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(inbound.capacity() * 2, MAX_BUFFER_SIZE));
+			inbound.flip();
+			larger.put(inbound);
+			inbound = larger;
+		}
+
+		int read;
+		try
+		{
+			if (channel != null)
+			{
+				read = channel.read(inbound);
+			}
+			else
+			{
+				read = socketIn.read(inbound.array(), inbound.position(), inbound.remaining());
+				if (read > 0)
+					inbound.position(inbound.position() + read);
+			}
+		}
+		finally
+		{
+			// Back to read mode even if the read timed out.
+			inbound.flip();
+		}
+
+		return read;
+	}
+
+	/**
+	 * Writes as much queued output as the channel accepts and
+	 * (un)registers write interest accordingly.
+	 *
+	 * @return {@code true} once every queued frame has been written.
+	 */
+	boolean flush() throws IOException
+	{
+		if (outbound.size() > 1)
+		{
+			// Header and shared info field go out in one gathering write.
+			channel.write(outbound.toArray(new ByteBuffer[outbound.size()]));
+		}
+
+		while (!outbound.isEmpty())
+		{
+			ByteBuffer head = outbound.peek();
+			channel.write(head);
+
+			if (head.hasRemaining())
+				break;
+
+			outbound.poll();
+		}
+
+		if (key != null && key.isValid())
+		{
+			if (outbound.isEmpty())
+				key.interestOps(SelectionKey.OP_READ);
+			else
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		}
+
+		return outbound.isEmpty();
+	}
+
+	void setSelectionKey(SelectionKey key)
+	{
+		this.key = key;
+	}
+
 	void close()
 	{
 		try
 		{
-			this.socket.close();
+			if (key != null)
+				key.cancel();
+
+			if (socket == null)
+			{
+				socketIn.close();
+				socketOut.close();
+			}
+			else
+				this.socket.close();
 		}
 		catch (IOException e){}
 	}
 
-	protected void enqeue(String message)
+	/**
+	 * Queues a broadcast for this station, unless it is already too far behind or the broadcast
+	 * is too long for its link. Safe from any thread.
+	 *
+	 * @return {@code false} if the broadcast was refused.
+	 */
+	protected boolean enqeue(Broadcast message)
+	{
+		if (segmentation == null && !fits(message.length()))
+		{
+			System.err.println(getAddress() + ": dropped a message over " + NetFrame.MAX_ENCODED_INFO_LENGTH
+					+ " bytes, the link does not segment.");
+			return false;
+		}
+
+		if (messageQueue.offer(message))
+			return true;
+
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return the oldest broadcast queued for this station, {@code null} if there is none.
+	 * Under {@code COALESCE}, the notice of what was refused once the queue has been emptied.
+	 */
+	protected Broadcast nextMessage()
+	{
+		Broadcast message = messageQueue.poll();
+
+		if (message == null && overflow == OutboundQueue.Overflow.COALESCE)
+		{
+			int skipped = dropped.getAndSet(0);
+			if (skipped > 0)
+				return new Broadcast("(" + skipped + " messages dropped while this station was behind)");
+		}
+
+		return message;
+	}
+
+	boolean hasMessages()
 	{
-		messageQueue.add(message);
+		return !messageQueue.isEmpty();
 	}
 
 	/**
-	 * Retourne les message et les claires
-	 * @return List of messages.
+	 * Moves queued broadcasts into the send window while it has room for them. Those that do
+	 * not fit stay in the bounded queue, rather than piling up behind the window.
+	 *
+	 * @return the number of broadcasts sent.
 	 */
-	protected LinkedList<String> getMessages()
+	int sendQueued() throws IOException
 	{
-		LinkedList<String> temp = messageQueue;
-		messageQueue = new LinkedList<String>();
-		return temp;
+		int sent = 0;
+		Broadcast message;
+
+		while (slidingWindow.backlog() == 0 && slidingWindow.outstanding() < slidingWindow.windowSize()
+				&& (message = nextMessage()) != null)
+		{
+			send(message.frameFor(station));
+			sent++;
+		}
+
+		return sent;
 	}
-	
+
+	/**
+	 * Polls the station. The poll goes out on the last of the queued broadcasts the window
+	 * has room for, whose N(R) acknowledges what the station sent just as an RR would;
+	 * RR+P goes out on its own only when there is none to carry it, RNR+P while the station
+	 * is backed up.
+	 *
+	 * @return the number of broadcasts sent with the poll.
+	 */
+	int poll() throws IOException
+	{
+		boolean busy = isBackedUp();
+		int sent = 0;
+		NetFrame last = null;
+		Broadcast message;
+
+		// Each goes out once the next is known, so the last one can carry P.
+		while (slidingWindow.backlog() == 0 && slidingWindow.outstanding() + (last == null? 0 : 1) < slidingWindow.windowSize()
+				&& (message = nextMessage()) != null)
+		{
+			if (last != null)
+				send(last);
+			last = message.frameFor(station);
+			sent++;
+		}
+
+		if (last != null)
+		{
+			// RNR cannot ride on an I-frame.
+			if (!busy)
+				last.setPollFinal(HDLCFrame.Poll);
+			if (send(last) && !busy)
+				return sent;
+			// Or waiting for room in the window: the poll cannot wait with it.
+		}
+
+		NetFrame poll = new NetFrame(station, Types.SFrame, busy? Commands.RNR : Commands.RR);
+		poll.setPollFinal(HDLCFrame.Poll);
+		send(poll);
+		return sent;
+	}
+
+	/**
+	 * @return {@code true} while the queue is over half full, until it is down to a quarter:
+	 * the station should be polled with RNR rather than RR, so it adds nothing more meanwhile.
+	 */
+	boolean isBackedUp()
+	{
+		int queued = messageQueue.size();
+
+		if (queued >= messageQueue.capacity() / 2)
+			backedUp = true;
+		else if (queued <= messageQueue.capacity() / 4)
+			backedUp = false;
+
+		return backedUp;
+	}
+
+	/**
+	 * @return {@code true} once a broadcast has been refused under the {@code EVICT} policy:
+	 * the station should be disconnected.
+	 */
+	boolean isOverrun()
+	{
+		return overflow == OutboundQueue.Overflow.EVICT && dropped.get() > 0;
+	}
+
+	/**
+	 * Sets what becomes of broadcasts refused once the station's queue is full.
+	 */
+	void setOverflow(OutboundQueue.Overflow overflow)
+	{
+		this.overflow = overflow;
+	}
+
 	/**
 	 * Returns a {@code String} representation of this {@code Connection}.
 	 */
 	@Override
 	public String toString()
 	{
-		return socket.toString();
+		return (socket == null)? station.toString() : socket.toString();
 	}
 }
@@ -0,0 +1,234 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame.Commands;
+import chat.NetFrame.HDLCFrame.Types;
+
+/**
+ * Encoding and decoding of the HDLC control field, as an int.
+ *
+ * Bits are numbered most significant first, as they go out on the text wire:
+ * <pre>
+ *   I-frame   0 NNN P RRR          extended  0 NNNNNNN P RRRRRRR
+ *   S-frame   1 0 CC P RRR         extended  1 0 CC 0000 P RRRRRRR
+ *   U-frame   1 1 CC P BBB
+ * </pre>
+ * A control octet is decoded with one lookup in each of the 256-entry tables below.
+ * Extended I- and S-frames keep their type and command in the first octet and
+ * the rest is read with masks. Nothing here allocates.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class ControlField
+{
+	private static final int OCTETS = 256;
+
+	/**
+	 * Frame type of every first control octet.
+	 */
+	private static final Types[] TYPE = new Types[OCTETS];
+	/**
+	 * {@code ControlCode} of every first control octet, {@code null} for I-frames and unknown codes.
+	 */
+	private static final Commands[] COMMAND = new Commands[OCTETS];
+	/**
+	 * P/F bit, N(S) and N(R) of every modulo 8 control octet.
+	 */
+	private static final boolean[] POLL = new boolean[OCTETS];
+	private static final byte[] NS = new byte[OCTETS];
+	private static final byte[] NR = new byte[OCTETS];
+	/**
+	 * Text encoding of every octet.
+	 */
+	private static final String[] TEXT = new String[OCTETS];
+	/**
+	 * Control octet of every {@code ControlCode}, P/F and N(R) cleared.
+	 */
+	private static final int[] CODE = new int[Commands.values().length];
+
+	static
+	{
+		// S-frames: 10CC
+		code(Commands.RR,   0x80);
+		code(Commands.RNR,  0x90);
+		code(Commands.REJ,  0xA0);
+		code(Commands.SREJ, 0xB0);
+
+		// U-frames: 11CC.BBB
+		code(Commands.UI,    0xC0);
+		code(Commands.SNRM,  0xC1);
+		code(Commands.DISC,  0xC2);
+		code(Commands.UP,    0xC4);
+		code(Commands.UA,    0xC6);
+		code(Commands.RIM,   0xE0);
+		code(Commands.FRMR,  0xE1);
+		code(Commands.SIM,   0xF0);
+		code(Commands.RSET,  0xF1);
+		code(Commands.SNRME, 0xF3);
+		code(Commands.SABM,  0xF4);
+		code(Commands.XID,   0xF5);
+		code(Commands.SABME, 0xF6);
+		// RD is the response sharing DISC's code, it decodes as DISC.
+		CODE[Commands.RD.ordinal()] = CODE[Commands.DISC.ordinal()];
+
+		for (int octet = 0; octet < OCTETS; octet++)
+		{
+			if ((octet & 0x80) == 0)
+			{
+				TYPE[octet] = Types.IFrame;
+				NS[octet] = (byte) ((octet >> 4) & 0x7);
+			}
+			else
+			{
+				TYPE[octet] = ((octet & 0x40) == 0)? Types.SFrame : Types.UFrame;
+			}
+
+			if (TYPE[octet] != Types.UFrame)
+				NR[octet] = (byte) (octet & 0x7);
+
+			POLL[octet] = (octet & 0x08) != 0;
+
+			char[] bits = new char[8];
+			for (int i = 0; i < 8; i++)
+			{
+				bits[i] = ((octet >> (7 - i)) & 1) == 1? '1' : '0';
+			}
+			TEXT[octet] = new String(bits);
+		}
+	}
+
+	/**
+	 * Registers a command's control octet and every octet that decodes to it.
+	 */
+	private static void code(Commands command, int octet)
+	{
+		CODE[command.ordinal()] = octet;
+
+		if ((octet & 0x40) == 0)
+		{
+			// S-frame: any P/F and N(R)
+			for (int low = 0; low < 0x10; low++)
+			{
+				COMMAND[octet | low] = command;
+			}
+		}
+		else
+		{
+			// U-frame: any P/F
+			COMMAND[octet] = command;
+			COMMAND[octet | 0x08] = command;
+		}
+	}
+
+	private ControlField(){}
+
+	/**
+	 * @return the 8-bit control field of a frame type and command, P/F, N(S) and N(R) cleared.
+	 * @param command ignored for I-frames.
+	 */
+	static int encode(Types type, Commands command)
+	{
+		return (type == Types.IFrame)? 0 : CODE[command.ordinal()];
+	}
+
+	/**
+	 * @param extended {@code true} if the link runs in extended (modulo 128) mode.
+	 * @param firstOctet the first control octet of a frame.
+	 * @return the length of its control field in bytes: 2 for extended I- and S-frames, 1 otherwise.
+	 */
+	static int octets(boolean extended, int firstOctet)
+	{
+		return (extended && TYPE[firstOctet & 0xFF] != Types.UFrame)? 2 : 1;
+	}
+
+	/**
+	 * @param bits width of {@code control}, 8 or 16.
+	 */
+	static Types type(int control, int bits)
+	{
+		return TYPE[control >> (bits - 8)];
+	}
+
+	/**
+	 * @return the {@code ControlCode} of an S- or U-frame, {@code null} for I-frames.
+	 */
+	static Commands command(int control, int bits)
+	{
+		return COMMAND[control >> (bits - 8)];
+	}
+
+	static boolean isPoll(int control, int bits)
+	{
+		return (bits == 8)? POLL[control] : (control & pollBit(bits)) != 0;
+	}
+
+	/**
+	 * @return N(S), 3 bits (7 extended).
+	 */
+	static int ns(int control, int bits)
+	{
+		return (bits == 8)? NS[control] : (control >> (bits / 2)) & sequenceMask(bits);
+	}
+
+	/**
+	 * @return N(R), 3 bits (7 extended).
+	 */
+	static int nr(int control, int bits)
+	{
+		return (bits == 8)? NR[control] : control & sequenceMask(bits);
+	}
+
+	static int withPoll(int control, int bits, boolean poll)
+	{
+		return poll? control | pollBit(bits) : control & ~pollBit(bits);
+	}
+
+	/**
+	 * @param ns taken modulo the sequence space.
+	 */
+	static int withNS(int control, int bits, int ns)
+	{
+		int shift = bits / 2;
+		return (control & ~(sequenceMask(bits) << shift)) | ((ns & sequenceMask(bits)) << shift);
+	}
+
+	/**
+	 * @param nr taken modulo the sequence space.
+	 */
+	static int withNR(int control, int bits, int nr)
+	{
+		return (control & ~sequenceMask(bits)) | (nr & sequenceMask(bits));
+	}
+
+	/**
+	 * Widens an 8-bit I- or S-frame control field to the 16-bit extended format,
+	 * keeping its command, P/F and sequence numbers.
+	 */
+	static int extend(int control)
+	{
+		int extended = (TYPE[control] == Types.IFrame)? NS[control] << 8 : (control & 0xF0) << 8;
+		return withPoll(extended | NR[control], 16, POLL[control]);
+	}
+
+	/**
+	 * @return the text encoding of a control field.
+	 */
+	static String toText(int control, int bits)
+	{
+		return (bits == 8)? TEXT[control] : TEXT[control >> 8] + TEXT[control & 0xFF];
+	}
+
+	/**
+	 * @return the mask of the P/F bit, right above N(R).
+	 */
+	private static int pollBit(int bits)
+	{
+		return 1 << (bits / 2 - 1);
+	}
+
+	private static int sequenceMask(int bits)
+	{
+		return pollBit(bits) - 1;
+	}
+}
@@ -4,12 +4,12 @@ import chat.NetFrame;
 import chat.NetFrame.HDLCFrame;
 import chat.NetFrame.HDLCFrame.*;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.LinkedList;
 import java.net.InetAddress;
 
 public class DinoServe
@@ -19,15 +19,50 @@ public class DinoServe
 	 */
 	private static final int DEFAULT_PORT = 4444;
 	private static final int DEFAULT_SOCKET_TIMEOUT = 250;
+	/**
+	 * Longest a station may take to answer a poll before the others are served, in milliseconds.
+	 * A station that misses it is read again in the next cycle.
+	 */
+	private static final int DEFAULT_RESPONSE_TIMEOUT = 100;
+	private static final String MODE_NIO = "nio";
+	private static final String MODE_BLOCKING = "blocking";
+	private static final String MODE_THREADS = "threads";
+	private static final String LINK_BALANCED = "abm";
 	
 	/**
-	 * Server initializes an empty list of connections to clients.
+	 * Server initializes an empty registry of connections to clients.
+	 */
+	private static StationRegistry clients;
+	/**
+	 * When each station is polled next, idle ones backing off.
+	 */
+	private static PollScheduler scheduler;
+	/**
+	 * Retransmission strategy for every new connection.
+	 */
+	private static SlidingWindow.Mode arqMode = SlidingWindow.Mode.GO_BACK_N;
+	/**
+	 * Send window for every new connection, 0 for the largest the mode allows in modulo 8.
+	 * Larger windows switch the link to extended mode.
+	 */
+	private static int windowSize = 0;
+	/**
+	 * Longest an idle station goes without a poll, in milliseconds.
+	 */
+	private static int maxPollInterval = PollScheduler.DEFAULT_MAX_POLL_INTERVAL;
+	/**
+	 * What becomes of a station once it falls too far behind.
+	 */
+	private static OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP;
+	/**
+	 * Open every link in asynchronous balanced mode rather than normal response mode.
 	 */
-	private static LinkedList<Connection> clients;
+	private static boolean balanced = false;
 	
 	/**
-	 * Send each connected client's queued messages to all other clients.
-	 * The messages being broadcast are  {@code NetFrame}s in {@code String} form.
+	 * Send each connected client's queued messages to all other clients,
+	 * as many as its window has room for.
+	 * The messages being broadcast are encoded once and shared by every copy.
 	 * 
 	 * @param clients List of {@code ClientConnection}s to message.
 	 */
@@ -37,14 +72,33 @@ public class DinoServe
 		{
 			try
 			{
-				for (String message : connection.getMessages())
+				if (connection.isOverrun())
 				{
-                	NetFrame msg = new NetFrame(message);
-					connection.send(msg);
+					System.err.println(connection.getAddress() + " evicted: too far behind.");
+					NetFrame disc = new NetFrame(connection.getStation(), Types.UFrame, Commands.DISC);
+					disc.setPollFinal(HDLCFrame.Poll);
+					connection.send(disc);
+					terminate(connection);
+					continue;
 				}
+				
+				if (connection.hasMessages() && scheduler.pollEarly(connection))
+				{
+					// Due shortly anyway: polled with them, its response is read in the next cycle.
+					connection.poll();
+					scheduler.polled(connection);
+					connection.responseDue = System.currentTimeMillis() + DEFAULT_RESPONSE_TIMEOUT;
+				}
+				else if (connection.sendQueued() > 0)
+					scheduler.sent(connection);
+				
+				// Nothing may come to ask for it.
+				if (connection.isBalanced())
+					connection.acknowledge();
 			}
-			catch (Exception e)
+			catch (IOException e)
 			{
+				System.err.println(connection.getAddress() + " dropped: " + e.getMessage());
 				terminate(connection);
 			}
 		}
@@ -57,9 +111,8 @@ public class DinoServe
 	 */
 	private static void terminate(Connection deadMan)
     {
-		if (clients.contains(deadMan))
-			clients.remove(deadMan);
-		
+		clients.remove(deadMan);
+		scheduler.remove(deadMan);
 		deadMan.close();
     }
 	
@@ -74,107 +127,360 @@ public class DinoServe
     }
 	
 	/**
-	 * Accepts a list of <code>clientConnections<code> to poll.
+	 * Queues a received message for every client.
+	 * It is encoded once; each client's copy only gets its own address and sequence numbers.
+	 * 
+	 * @param info of the I-frame to relay, {@code null} while the message is still being reassembled.
+	 */
+	private static void broadcast(String info)
+	{
+		if (info == null)
+			return;
+		
+		System.out.println(info);
+		Broadcast msg = new Broadcast(info);
+		
+        //For each connection, check if the address matches
+        //If so, queue it to send it there
+        for (Connection destinationClient : clients.snapshot())
+        {
+                destinationClient.enqeue(msg);
+        }
+	}
+	
+	/**
+	 * Polls every station that is due, pipelined: the poll goes to each of them, on the last of their
+	 * waiting messages or as RR+P, RNR+P to those too far behind to take more messages from,
+	 * then the responses are gathered as they arrive.
+	 * Stations that stopped answering are dropped first. A cycle takes about the slowest station's
+	 * round trip instead of the sum of them all.
 	 * 
-	 * @param clients List each <code>ClientConnection<code> to poll.
 	 * @throws UnknownHostException 
 	 * @throws IOException Error reading from client connection.
 	 */
 	private static void pollStations() throws SocketException, UnknownHostException, IOException
 	{
-        String msg = "";
-        for (Connection client : clients)
+        for (Connection client = scheduler.nextDead(); client != null; client = scheduler.nextDead())
         {
-            NetFrame RR = new NetFrame(client.getAddress(), Types.SFrame, Commands.RR), response = null;
-            RR.setPollFinal(HDLCFrame.Poll);
-            
+        	System.err.println(client.getAddress() + " dropped: stopped answering polls.");
+        	terminate(client);
+        }
+        
+        for (Connection client = scheduler.nextDue(); client != null; client = scheduler.nextDue())
+        {
+        	if (client.state == Connection.State.POLLED)
+        		continue; // still owes us its last response
+        	
             try
 			{
-            	client.send(RR);
-            	msg = client.read();
-            	response = new NetFrame(msg);
+            	client.checkTimeout();
+            	client.poll();
+            	scheduler.polled(client);
+            	client.responseDue = System.currentTimeMillis() + DEFAULT_RESPONSE_TIMEOUT;
 			}
-            catch (NullPointerException e)
+            catch (IOException e)
 			{
-				e.printStackTrace();
-				return;
+				System.err.println(client.getAddress() + " dropped: " + e.getMessage());
+				terminate(client);
 			}
-            
-            switch (response.getFrameType())
+        }
+        
+        for (Connection client : clients)
+        {
+        	if (client.state != Connection.State.POLLED)
+        	{
+        		if (client.isBalanced())
+        			readUnpolled(client);
+        		continue;
+        	}
+        	
+            try
+			{
+            	// Whatever time is left of this station's deadline, at least a moment
+            	// for a response that has already arrived.
+            	client.setReadTimeout((int) Math.max(1, client.responseDue - System.currentTimeMillis()));
+            	FrameView response = client.readView();
+            	
+            	if (response == null)
+            		throw new EOFException("closed the connection.");
+            	
+            	// A response may span several frames, e.g. a batch of messages or the segments
+            	// of a long one, and ends with the frame carrying F. Take in every one already
+            	// received; the rest are read in the next cycle.
+            	while (response != null)
+            	{
+            		if (!handleResponse(client, response))
+            			break;
+            		if (response.isFinal())
+            		{
+            			scheduler.answered(client, response.getFrameType() == Types.IFrame);
+            			break;
+            		}
+            		response = client.readAvailable();
+            	}
+			}
+            catch (SocketTimeoutException e)
             {
-            	case IFrame:
-            		System.out.println(response.getInfo());
-                    
-                    //For each connection, check if the address matches
-                    //If so, queue it to send it there
-                    for (Connection destinationClient : clients)
-                    {
-                            destinationClient.enqeue(msg);
-                    }
-                    
-            		break;
-            		
-            	case SFrame:
-            		if (response.getCC() == Commands.RR && response.isFinal())
-                    {
-                        //System.out.println(client.getAddress() + " is RR.");
-                    }
-            		break;
-            		
-            	case UFrame:
-            		switch (response.getCC())
-                    {
-                    	case DISC:
-                    		//Client requesting clean disconnect
-                    		System.err.println(client.getAddress() + " requesting disconnect.");
-                    		NetFrame disc = new NetFrame(client.getAddress(), Types.UFrame, Commands.DISC);
-                			disc.setPollFinal(HDLCFrame.Final);
-                			client.send(disc);
-                			
-                			if (clients.contains(client))
-                				clients.remove(client);
-                            break;
-                    }
-            		break;
+            	// Too slow for this cycle, its response is read in the next one
+            	// unless T1 runs out first.
             }
+            catch (IOException e)
+			{
+				// Drop it and keep polling the others.
+				System.err.println(client.getAddress() + " dropped: " + e.getMessage());
+				terminate(client);
+			}
+        }
+	}
+	
+	/**
+	 * Takes in whatever a balanced station sent on its own since its last poll, without waiting for more.
+	 */
+	private static void readUnpolled(Connection client)
+	{
+		try
+		{
+			FrameView frame = client.readAvailable();
+			boolean productive = false;
+			
+			if (frame == null)
+				return;
+			
+			while (frame != null)
+			{
+				productive |= frame.getFrameType() == Types.IFrame;
+				if (!handleResponse(client, frame))
+					return;
+				frame = client.readAvailable();
+			}
+			
+			scheduler.answered(client, productive);
+		}
+		catch (IOException e)
+		{
+			System.err.println(client.getAddress() + " dropped: " + e.getMessage());
+			terminate(client);
+		}
+	}
+	
+	/**
+	 * Handles one frame of a station's response to a poll.
+	 * 
+	 * @return {@code false} once the station has disconnected.
+	 */
+	private static boolean handleResponse(Connection client, FrameView response) throws IOException
+	{
+        if (!client.receive(response) && response.getFrameType() == Types.IFrame)
+        	return true; // out of sequence, REJ goes out with the next poll
+        
+        switch (response.getFrameType())
+        {
+        	case IFrame:
+        		broadcast(client.reassemble(response));
+        		
+        		// Frames held back waiting for this one
+        		NetFrame late;
+        		while ((late = client.nextReleased()) != null)
+        			broadcast(client.reassemble(late));
+                
+        		break;
+        		
+        	case UFrame:
+        		switch (response.getCC())
+                {
+                	case DISC:
+                		//Client requesting clean disconnect
+                		System.err.println(client.getAddress() + " requesting disconnect.");
+                		NetFrame disc = new NetFrame(client.getStation(), Types.UFrame, Commands.DISC);
+            			disc.setPollFinal(HDLCFrame.Final);
+            			client.send(disc);
+            			terminate(client);
+                        return false;
+                }
+        		break;
         }
+        
+        return true;
 	}
     
 	/**
 	 * Initiates an HDLC handshake.
+	 * A station gets T1 to answer, rather than every other station's polls for ever.
 	 * @param client with which to do the handshake
+	 * @return {@code false} if the station answered anything else than UA, or nothing in time.
 	 */
-	private static void handShake(Connection client) throws InterruptedException, Exception
+	private static boolean handShake(Connection client) throws IOException
     {
-        // Set normal response mode
-    	NetFrame snrm = new NetFrame(client.getAddress(), Types.UFrame, Commands.SNRM);
-        client.send(snrm);
+    	client.setReadTimeout((int) client.getTimeout());
 
-        NetFrame ua = new NetFrame(client.read());
+        // Set normal response mode, or asynchronous balanced mode
+    	client.sendSetMode(arqMode, windowSize, balanced);
+
+        NetFrame ua;
+        try
+        {
+        	ua = client.read();
+        }
+        catch (SocketTimeoutException e)
+        {
+        	System.err.println(client.getAddress() + " dropped: never answered the link setup.");
+        	return false;
+        }
 
-        if (!(ua.getFrameType() == Types.UFrame && ua.getCC() == Commands.UA))
+        if (ua == null || !(ua.getFrameType() == Types.UFrame && ua.getCC() == Commands.UA))
         {
             System.err.println("ERROR : Did not  UA frame from " + client.getAddress());
+            return false;
         }
+
+        // The UA names the wire format picked and repeats the options the client takes up.
+        client.setWireFormat(WireFormat.choose(ua.getInfo()));
+        client.setFrameCheck(FrameCheck.fromOffer(ua.getInfo()));
+        client.setSegmentation(Segmentation.fromOffer(ua.getInfo()));
+        return true;
     }
 	/**
 	 * Main server thread.
+	 * 
+	 * Usage: {@code DinoServe [port] [nio|blocking|threads] [gbn|srej] [window] [max poll ms] [drop|coalesce|evict] [nrm|abm]}.
+	 * The default {@code nio} mode runs every station on one {@code SelectorEngine},
+	 * {@code blocking} keeps the original accept/poll/send loop and
+	 * {@code threads} runs that loop for each station on a thread of its own, see {@code ThreadEngine}.
+	 * {@code srej} switches every connection from Go-Back-N to Selective Repeat.
+	 * A window too large for modulo 8 sequence numbers (over 7, or 4 with {@code srej})
+	 * sets up extended mode with SNRME.
+	 * Stations with nothing to send are polled less and less often, down to once every
+	 * {@code max poll ms} (640 by default).
+	 * A station more than 512 messages behind is polled with RNR, so it sends nothing more until it
+	 * catches up; once 1024 behind, the messages that do not fit are dropped, dropped with a notice
+	 * of how many, or the station is disconnected.
+	 * {@code abm} opens the links with SABM(E) instead of SNRM(E): stations send their messages
+	 * without waiting for a poll. {@code threads} mode always uses normal response mode.
 	 */
 	public static void main(String[] args)
+	{
+		int port = DEFAULT_PORT;
+		String mode = MODE_NIO;
+		
+		try
+		{
+			if (args.length > 0)
+				port = Integer.parseInt(args[0]);
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Bad port " + args[0] + ", using " + DEFAULT_PORT);
+		}
+		
+		if (args.length > 1)
+			mode = args[1];
+		
+		if (args.length > 2)
+			arqMode = SlidingWindow.Mode.forName(args[2]);
+		
+		try
+		{
+			if (args.length > 3)
+				windowSize = Integer.parseInt(args[3]);
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Bad window size " + args[3] + ", using the default.");
+		}
+		
+		try
+		{
+			if (args.length > 4)
+				maxPollInterval = Integer.parseInt(args[4]);
+		}
+		catch (NumberFormatException e)
+		{
+			System.err.println("Bad poll interval " + args[4] + ", using " + maxPollInterval);
+		}
+		
+		if (args.length > 5)
+			overflow = OutboundQueue.Overflow.forName(args[5]);
+		
+		if (args.length > 6)
+			balanced = LINK_BALANCED.equals(args[6]);
+		
+		if (MODE_BLOCKING.equals(mode))
+		{
+			runBlocking(port);
+			return;
+		}
+		
+		if (MODE_THREADS.equals(mode))
+		{
+			runThreads(port);
+			return;
+		}
+		
+        System.out.println("Server initializing...");
+        
+		try
+		{
+			SelectorEngine engine = new SelectorEngine(port, SelectorEngine.DEFAULT_POLL_INTERVAL, maxPollInterval);
+			engine.setArqMode(arqMode);
+			engine.setWindowSize(windowSize);
+			engine.setOverflow(overflow);
+			engine.setBalanced(balanced);
+			System.out.println("Server socket open.");
+			System.out.println("Waiting for clients...");
+			engine.run();
+		}
+		catch (IOException e)
+		{
+			System.err.println("FATAL: could not listen on port: " + port);
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * One thread per station, each running the blocking poll loop.
+	 */
+	private static void runThreads(int port)
+	{
+        System.out.println("Server initializing...");
+        
+		try
+		{
+			ThreadEngine engine = new ThreadEngine(port, SelectorEngine.DEFAULT_POLL_INTERVAL, maxPollInterval);
+			engine.setArqMode(arqMode);
+			engine.setWindowSize(windowSize);
+			engine.setOverflow(overflow);
+			System.out.println("Server socket open.");
+			System.out.println("Waiting for clients...");
+			engine.run();
+		}
+		catch (IOException e)
+		{
+			System.err.println("FATAL: could not listen on port: " + port);
+			e.printStackTrace();
+			System.exit(-1);
+		}
+	}
+	
+	/**
+	 * Original single-threaded loop: accept with a timeout, then poll every station in turn.
+	 */
+	private static void runBlocking(int port)
 	{
         System.out.println("Server initializing...");
         
 		ServerSocket serverSocket = null;
-		clients = new LinkedList<Connection>();
+		clients = new StationRegistry();
+		scheduler = new PollScheduler(SelectorEngine.DEFAULT_POLL_INTERVAL, maxPollInterval);
 			
 		try
 		{
-			serverSocket = new ServerSocket(DEFAULT_PORT);
+			serverSocket = new ServerSocket(port);
 			serverSocket.setSoTimeout(DEFAULT_SOCKET_TIMEOUT);
 		}
 		catch (IOException e)
 		{
-			System.err.println("FATAL: could not listen on port: " + args[0]);
+			System.err.println("FATAL: could not listen on port: " + port);
 			System.exit(-1);
 		}
 		Connection client = null;
@@ -192,12 +498,20 @@ public class DinoServe
                 client = new Connection(
             		// thread blocks here until a connection is made
             		serverSocket.accept());
+                client.setOverflow(overflow);
                 
-                handShake(client);
-                clients.addLast(client);
-                clientsConnected = true;
-                
-                System.out.println("Client added " + client.getAddress());
+                if (handShake(client))
+                {
+                	clients.add(client);
+                	scheduler.schedule(client, 0);
+                	clientsConnected = true;
+                	// From now on the wait for new stations paces the poll cycles.
+                	serverSocket.setSoTimeout(SelectorEngine.DEFAULT_POLL_INTERVAL);
+                	
+                	System.out.println("Client added " + client.getAddress());
+                }
+                else
+                	terminate(client);
             }
 			catch (UnknownHostException e)
 			{
@@ -210,7 +524,7 @@ public class DinoServe
             	// The listen socket timed out.
             	//System.err.println("Timeout.");
             }
-			catch (Exception e)
+			catch (IOException e)
 			{
                 System.err.println("Listen loop error:");
                 e.printStackTrace();
@@ -229,9 +543,10 @@ public class DinoServe
                 e.printStackTrace();
 			}
             
-            if (clients.size() == 0 && clientsConnected)
+            if (clients.isEmpty() && clientsConnected)
             {
             	System.err.println("All clients have disconnected. Terminating server.");
+            	System.err.println("Poll efficiency: " + scheduler);
             	break; // exit loop
             }
         }
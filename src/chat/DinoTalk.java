@@ -1,9 +1,5 @@
 package chat;
 
-import chat.NetFrame;
-import chat.NetFrame.HDLCFrame;
-import chat.NetFrame.HDLCFrame.*;
-
 import java.applet.Applet;
 import java.awt.Color;
 import java.awt.Font;
@@ -27,11 +23,11 @@ import java.net.UnknownHostException;
 
 import com.google.common.net.InetAddresses;
 
-public class DinoTalk extends Applet implements ActionListener, KeyListener, Runnable
+public class DinoTalk extends Applet implements ActionListener, KeyListener, Runnable, ChatClient.Listener
 {
 	private static final long serialVersionUID = 1702635793607554428L;
 	
-	private String clientId, fromServer, userData, connectionStatus;
+	private String clientId, connectionStatus;
 	private static final String STATUS_OK = "Connected to a Chat Server!";
 	private static final String STATUS_KO = "Not connected to a Chat Server!";
 	
@@ -53,6 +49,35 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 	private int serverPort;
 	private static final int DEFAULT_SERVER_PORT = 4444;
 	private Connection server;
+	/**
+	 * Speaks the protocol on {@code server}, the listening thread hands it every frame.
+	 */
+	private ChatClient client;
+	/**
+	 * Messages received and not yet on screen. Non-empty while a display of them is scheduled.
+	 */
+	private final StringBuilder received = new StringBuilder();
+	/**
+	 * Appends every message received so far to the chat, on the event dispatch thread.
+	 */
+	private final Runnable displayReceived = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			String messages;
+			synchronized (received)
+			{
+				messages = received.toString();
+				received.setLength(0);
+			}
+
+			if (textArea.getText().isEmpty())
+				textArea.append(messages.substring(1));
+			else
+				textArea.append(messages);
+		}
+	};
 	
 	/************************************************************************/
 	
@@ -167,18 +192,21 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 		if (!textField.getText().isEmpty())
 		{
 			//
-			// copy content of the message text into
-			// internal buffer for later processing
-			// only one message can be stored into the
-			// buffer
+			// queue the message text, it goes out
+			// the next time the server polls us,
+			// right away on a balanced link
 			//
-			userData = clientId + ": " + textField.getText();
+			try
+			{
+				if (client != null)
+					client.send(clientId + ": " + textField.getText());
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
 			textField.setText("");
 		}
-		else
-		{
-			userData = "";
-		}
     }
 	
 	/**
@@ -227,9 +255,9 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 			// mySocket.setSoTimeout(500);
 			
             server = new Connection(serverAddress, serverPort);
-            handShake();
+            client = new ChatClient(server, this);
             
-			// define new listeningThread
+			// define new listeningThread, it answers the server's SNRM
 			listeningThread = new Thread(this);
 			listeningThread.start();
 			
@@ -254,19 +282,16 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 	
 	private void disconnect()
 	{
-			NetFrame disc = new NetFrame(server.getAddress(), Types.UFrame, Commands.DISC);
-			disc.setPollFinal(HDLCFrame.Poll);
 			try
 			{
-				server.send(disc);
+				client.disconnect();
 			}
 			catch (IOException e)
 			{
 				e.printStackTrace();
 			}
 			
-			//Wait for clean disconnect
-			checkServer();
+			// The listening thread gets the server's DISC and shuts us down.
 	}
 	
 	/**
@@ -315,93 +340,19 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 	/**
 	 * Run - listeningThread method.
 	 * Only executes once the connect button is pressed.
+	 * Blocks on the socket and handles every frame as soon as it arrives, so the replies
+	 * the protocol calls for go out from here, under the client's lock like the messages the
+	 * event dispatch thread sends; received messages are handed to the event dispatch thread.
 	 */
 	@Override
 	public void run()
-	{
-		userData = "";
-		while (true)
-		{
-			checkServer();
-			try	
-			{
-				Thread.sleep(100);
-			}
-			catch (InterruptedException e){}
-		}
-	}
-	
-	/**
-	 * To complete an HDLC handshake.
-	 */
-	private void handShake() throws SocketException, IOException
-    {
-		String received = server.read();
-        NetFrame snrm = new NetFrame(received);
-        
-        if (snrm.getFrameType() == Types.UFrame && snrm.getCC() == Commands.SNRM)
-        {
-            NetFrame ua = new NetFrame(server.getAddress(), Types.UFrame, Commands.UA);
-            server.send(ua);
-        }
-        else
-        {
-            System.err.println("ERROR : Did not receive SNRM frame from " + server.getAddress());
-        }
-    }
-	
-	/**
-	 * checkServer - this is a main client algorithm.
-	 */
-	private void checkServer()
 	{
 		try
 		{
-			fromServer = server.read();
-			
-			if (!fromServer.isEmpty())
+			while (!Thread.currentThread().isInterrupted())
 			{
-				NetFrame recv = new NetFrame(fromServer);
-				switch(recv.getFrameType())
-				{
-					case IFrame:
-                        fromServer = recv.getInfo();
-                        if (textArea.getText().isEmpty())
-                        	textArea.append(fromServer);
-                        else
-                        	textArea.append("\n"+fromServer);
-						break;
-						
-					case SFrame:
-                        switch (recv.getCC())
-                        {
-                        	case RR:
-                        		NetFrame toSend = null;
-                                if (!userData.isEmpty()) //Something to send
-                                {
-                                	toSend = new NetFrame(server.getAddress(), Types.IFrame, userData);
-                                    userData = "";
-                                }
-                                else if (recv.isPoll()) // Request for ack
-                                {
-                                	toSend = new NetFrame(server.getAddress(), Types.SFrame, Commands.RR);
-                                }
-                                toSend.setPollFinal(HDLCFrame.Final); //Send ack
-                                server.send(toSend); 
-                                break;
-                        }
-						break;
-						
-					case UFrame:
-						switch (recv.getCC())
-                        {
-                        	case DISC:
-                        		System.out.println("Server allowed clean disconnect.");
-                        		stop();
-                                break;
-                        }
-						break;
-				}
+				if (!client.receive())
+					throw new SocketException("Connection closed by server.");
 			}
 		}
 		catch (SocketException | NullPointerException e)
@@ -415,4 +366,30 @@ public class DinoTalk extends Applet implements ActionListener, KeyListener, Run
 			stop();
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Queues a message from the server for the chat. Messages that arrive before the
+	 * event dispatch thread gets to them go on screen together.
+	 */
+	@Override
+	public void messageReceived(String message)
+	{
+		boolean scheduled;
+		
+		synchronized (received)
+		{
+			scheduled = received.length() > 0;
+			received.append('\n').append(message);
+		}
+		
+		if (!scheduled)
+			SwingUtilities.invokeLater(displayReceived);
+	}
+	
+	@Override
+	public void disconnected()
+	{
+		System.out.println("Server allowed clean disconnect.");
+		stop();
+	}
+}
@@ -0,0 +1,383 @@
+package chat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * HDLC framing over a byte stream: every frame sits between two flags (01111110) and has
+ * a 0 inserted after every five consecutive 1 bits in between, so no flag can appear inside
+ * a frame. A receiver finds where a frame ends without trusting its length field, and finds
+ * the next frame after garbage or an abort (seven 1 bits).
+ *
+ * Bits go out most significant first, as in the text encoding. A frame starts with a flag
+ * on a byte boundary and is padded with 1 bits after its closing flag up to the next one.
+ * A closing flag starting on a byte boundary may double as the next frame's opening flag.
+ *
+ * Bits are stuffed, destuffed and searched for flags 64 at a time. A word without a run
+ * of five 1 bits, the common case, is copied with a few shifts; each run costs one
+ * {@code Long.numberOfLeadingZeros}.
+ *
+ * An instance receives frames: it remembers how far it has scanned the frame in progress,
+ * so a frame arriving over many partial reads is scanned only once, and destuffs complete
+ * frames in place. Not thread-safe, each connection has its own.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class FlagFramer
+{
+	static final byte FLAG = 0x7E;
+
+	/**
+	 * {@link #deframe(ByteBuffer)}: the closing flag has not been received yet.
+	 */
+	static final int INCOMPLETE = -1;
+	/**
+	 * {@link #deframe(ByteBuffer)}: the sender aborted the frame, it was discarded.
+	 */
+	static final int ABORTED = -2;
+	/**
+	 * {@link #deframe(ByteBuffer)}: the frame between the flags is not a whole number of bytes.
+	 */
+	static final int CORRUPT = -3;
+
+	/**
+	 * Most 1 bits in a row inside a frame, a 0 is inserted after them.
+	 */
+	private static final int MAX_ONES = 5;
+	/**
+	 * 1 bits in a flag. One more is an abort.
+	 */
+	private static final int FLAG_ONES = 6;
+
+	/**
+	 * Where the next output word goes: a new frame when sending, the receive buffer when destuffing.
+	 */
+	private ByteBuffer out;
+	private int outIndex;
+	/**
+	 * Output bits not written yet, left-aligned.
+	 */
+	private long pending;
+	private int pendingBits;
+	/**
+	 * 1 bits in a row at the end of the input stuffed so far.
+	 */
+	private int ones;
+
+	/**
+	 * Where the data of the frame in progress starts, in bits past the start of its opening flag.
+	 * Further than 8 after empty frames between back-to-back flags.
+	 */
+	private int dataStart = 8;
+	/**
+	 * Bits past the start of the opening flag already searched for the closing flag.
+	 */
+	private int scanned = 8;
+
+	/**
+	 * Frames a whole frame given in pieces, e.g. a header, a shared info field and an FCS.
+	 *
+	 * @return a new buffer ready to be written: opening flag, stuffed pieces, closing flag and padding.
+	 */
+	static ByteBuffer frame(ByteBuffer... pieces)
+	{
+		int length = 0;
+		for (ByteBuffer piece : pieces)
+		{
+			length += piece.remaining();
+		}
+
+		// Two flags, one inserted 0 per five bits at worst, and padding.
+		int bits = 8 + 8 * length + 8 * length / MAX_ONES + 8;
+		FlagFramer framer = new FlagFramer();
+		framer.out = ByteBuffer.allocate((bits + 7) / 8);
+
+		framer.put((long) FLAG << 56, 8);
+		for (ByteBuffer piece : pieces)
+		{
+			framer.stuff(piece);
+		}
+		framer.put((long) FLAG << 56, 8);
+		int padding = (8 - framer.pendingBits % 8) % 8;
+		framer.put(top(-1L, padding), padding);
+		framer.finish();
+
+		framer.out.limit(framer.outIndex);
+		return framer.out;
+	}
+
+	/**
+	 * Skips to the next opening flag in a buffer in read mode.
+	 *
+	 * @return {@code false} if the buffer holds none; everything in it was consumed.
+	 */
+	boolean hunt(ByteBuffer buffer)
+	{
+		for (int i = buffer.position(); i < buffer.limit(); i++)
+		{
+			if (buffer.get(i) == FLAG)
+			{
+				if (i != buffer.position())
+				{
+					buffer.position(i);
+					reset();
+				}
+				return true;
+			}
+		}
+
+		buffer.position(buffer.limit());
+		reset();
+		return false;
+	}
+
+	/**
+	 * Takes the frame following the opening flag at a buffer's position, consuming its bytes
+	 * once its closing flag has been received. The frame is destuffed in place, starting at
+	 * the index of its opening flag; the bytes after it up to the new position are garbage.
+	 *
+	 * @return its length in bytes, or {@link #INCOMPLETE}, {@link #ABORTED} or {@link #CORRUPT}.
+	 */
+	int deframe(ByteBuffer buffer)
+	{
+		int flag = buffer.position() * 8;
+		int end = buffer.limit() * 8;
+
+		while (true)
+		{
+			int run = findFlagOnes(buffer, flag + scanned, end);
+
+			if (run < 0 || run + FLAG_ONES >= end)
+			{
+				// Resume where a run may start that has not been received whole.
+				scanned = Math.max(scanned, (run < 0)? end - FLAG_ONES + 1 - flag : run - flag);
+				return INCOMPLETE;
+			}
+
+			boolean abort = bit(buffer, run + FLAG_ONES);
+			int after = run + FLAG_ONES + 1;
+
+			if (abort)
+			{
+				buffer.position((after + 7) / 8);
+				reset();
+				return ABORTED;
+			}
+
+			if (run - 1 <= flag + dataStart)
+			{
+				// Back-to-back flags, or flags sharing a 0: the frame starts after the second.
+				dataStart = scanned = after - flag;
+				continue;
+			}
+
+			int bits = destuff(buffer, flag + dataStart, run - 1, flag / 8);
+			int closing = run - 1;
+			buffer.position((closing % 8 == 0)? closing / 8 : (after + 7) / 8);
+			reset();
+
+			return (bits % 8 == 0)? bits / 8 : CORRUPT;
+		}
+	}
+
+	/**
+	 * Forgets the frame in progress.
+	 */
+	private void reset()
+	{
+		dataStart = scanned = 8;
+	}
+
+	/**
+	 * Inserts a 0 after every five 1 bits of a piece, carrying the run over from the previous piece.
+	 */
+	private void stuff(ByteBuffer piece)
+	{
+		int bit = piece.position() * 8;
+		int end = piece.limit() * 8;
+
+		while (bit < end)
+		{
+			// The 1 bits already sent, then as many new bits as fit.
+			int width = Math.min(64, ones + end - bit);
+			long word = top(~(-1L >>> ones) | (word(piece, bit, end) >>> ones), width);
+			long runs = fives(word);
+
+			if (runs == 0)
+			{
+				put(top(word << ones, width - ones), width - ones);
+				bit += width - ones;
+				ones = trailingOnes(word, width);
+			}
+			else
+			{
+				int fifth = Long.numberOfLeadingZeros(runs) + MAX_ONES - 1;
+				put(top(word << ones, fifth + 1 - ones), fifth + 1 - ones);
+				put(0, 1);
+				bit += fifth + 1 - ones;
+				ones = 0;
+			}
+		}
+	}
+
+	/**
+	 * Removes the 0 following every five 1 bits of a frame, writing it back over the
+	 * same buffer. The output never overtakes the input, since it starts a flag earlier
+	 * and never grows faster.
+	 *
+	 * @param from first bit of the frame, absolute.
+	 * @param end bit where the closing flag starts, absolute.
+	 * @param index where the first output byte goes.
+	 * @return the number of bits written.
+	 */
+	private int destuff(ByteBuffer buffer, int from, int end, int index)
+	{
+		out = buffer;
+		outIndex = index;
+		int inRow = 0;
+		int bit = from;
+
+		while (bit < end)
+		{
+			int width = Math.min(64, inRow + end - bit);
+			long word = top(~(-1L >>> inRow) | (word(buffer, bit, end) >>> inRow), width);
+			long runs = fives(word);
+
+			if (runs == 0)
+			{
+				put(top(word << inRow, width - inRow), width - inRow);
+				bit += width - inRow;
+				inRow = trailingOnes(word, width);
+			}
+			else
+			{
+				int fifth = Long.numberOfLeadingZeros(runs) + MAX_ONES - 1;
+				put(top(word << inRow, fifth + 1 - inRow), fifth + 1 - inRow);
+				bit += fifth + 2 - inRow; // and the inserted 0
+				inRow = 0;
+			}
+		}
+
+		int bits = 8 * (outIndex - index) + pendingBits;
+		finish();
+		out = null;
+		return bits;
+	}
+
+	/**
+	 * Appends bits to the output.
+	 *
+	 * @param bits left-aligned, every bit past {@code count} clear.
+	 * @param count 0 to 64.
+	 */
+	private void put(long bits, int count)
+	{
+		if (count == 0)
+			return;
+
+		pending |= bits >>> pendingBits;
+		pendingBits += count;
+
+		if (pendingBits >= 64)
+		{
+			out.putLong(outIndex, pending);
+			outIndex += 8;
+			pendingBits -= 64;
+			pending = (pendingBits == 0)? 0 : bits << (count - pendingBits);
+		}
+	}
+
+	/**
+	 * Writes the pending output bytes, the last one zero-padded.
+	 */
+	private void finish()
+	{
+		for (int i = 0; i < pendingBits; i += 8)
+		{
+			out.put(outIndex++, (byte) (pending >>> (56 - i)));
+		}
+
+		pending = 0;
+		pendingBits = 0;
+	}
+
+	/**
+	 * @return the first bit at or after {@code from} starting six 1 bits in a row, {@code -1} if none.
+	 */
+	private static int findFlagOnes(ByteBuffer buffer, int from, int end)
+	{
+		// Overlapping words, so a run across two of them is seen whole in one.
+		for (int bit = from; bit < end; bit += 64 - FLAG_ONES + 1)
+		{
+			long word = word(buffer, bit, end);
+			long runs = word & (word << 1) & (word << 2) & (word << 3) & (word << 4) & (word << 5);
+
+			if (runs != 0)
+				return bit + Long.numberOfLeadingZeros(runs);
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return a mask of the bits starting five 1 bits in a row.
+	 */
+	private static long fives(long word)
+	{
+		return word & (word << 1) & (word << 2) & (word << 3) & (word << 4);
+	}
+
+	/**
+	 * @return the number of 1 bits ending the first {@code width} bits of a word.
+	 */
+	private static int trailingOnes(long word, int width)
+	{
+		return Long.numberOfTrailingZeros(~(word >>> (64 - width)));
+	}
+
+	/**
+	 * @return the first {@code count} bits of a word, the rest cleared.
+	 */
+	private static long top(long word, int count)
+	{
+		return (count == 64)? word : word & ~(-1L >>> count);
+	}
+
+	/**
+	 * @return 64 bits of a buffer from any bit index, left-aligned, bits from {@code end} on cleared.
+	 */
+	private static long word(ByteBuffer buffer, int bit, int end)
+	{
+		int index = bit >>> 3;
+		int shift = bit & 7;
+		long word;
+
+		if (index + 9 <= buffer.limit())
+			word = (buffer.getLong(index) << shift) | ((buffer.get(index + 8) & 0xFF) >>> (8 - shift));
+		else
+			word = tail(buffer, index) << shift;
+
+		return top(word, Math.max(0, Math.min(64, end - bit)));
+	}
+
+	/**
+	 * @return the last bytes of a buffer from {@code index} on, left-aligned.
+	 */
+	private static long tail(ByteBuffer buffer, int index)
+	{
+		long word = 0;
+
+		for (int i = index; i < index + 8; i++)
+		{
+			word = (word << 8) | ((i < buffer.limit())? buffer.get(i) & 0xFF : 0);
+		}
+
+		return word;
+	}
+
+	private static boolean bit(ByteBuffer buffer, int bit)
+	{
+		return (buffer.get(bit >>> 3) & (0x80 >>> (bit & 7))) != 0;
+	}
+}
@@ -0,0 +1,170 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Measures HDLC bit stuffing: framing and deframing 64 bits at a time with {@code FlagFramer},
+ * against the textbook loop that stuffs one bit at a time.
+ *
+ * Usage: {@code FlagFramerBenchmark [megabytes]}.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class FlagFramerBenchmark
+{
+	private static final int DEFAULT_MEGABYTES = 64;
+	private static final int MEGABYTE = 1024 * 1024;
+	/**
+	 * Binary RR, 36-character I-frame and largest I-frame.
+	 */
+	private static final int[] SIZES = {7, 43, 7 + 512};
+	private static final byte[] MESSAGE = "Anonymous: the quick brown dinosaur jumps over the lazy server. "
+			.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * Keeps the JIT from discarding the results.
+	 */
+	private static long sink;
+
+	public static void main(String[] args)
+	{
+		int megabytes = (args.length > 0)? Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+		for (int size : SIZES)
+		{
+			// Chat text, which rarely holds five 1 bits in a row.
+			ByteBuffer frame = ByteBuffer.allocate(size);
+			for (int i = 0; i < size; i++)
+			{
+				frame.put(i, MESSAGE[i % MESSAGE.length]);
+			}
+
+			int frames = (int) ((long) megabytes * MEGABYTE / size);
+			FlagFramer framer = new FlagFramer();
+			ByteBuffer stuffed = FlagFramer.frame(frame);
+			ByteBuffer inbound = ByteBuffer.allocate(stuffed.remaining());
+
+			// Warm up, then measure.
+			stuffWords(frame, frames);
+			stuffBits(frame, frames);
+			unstuff(framer, stuffed, inbound, frames);
+
+			long words = stuffWords(frame, frames);
+			long bits = stuffBits(frame, frames);
+			long unstuffed = unstuff(framer, stuffed, inbound, frames);
+
+			System.out.println(String.format("%3d-byte frames: frame %6.1f ns (bit at a time %6.1f ns, %.1fx), deframe %6.1f ns",
+					size, (double) words / frames, (double) bits / frames, (double) bits / words, (double) unstuffed / frames));
+		}
+
+		if (sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * @return elapsed nanoseconds.
+	 */
+	private static long stuffWords(ByteBuffer frame, int frames)
+	{
+		long start = System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+		{
+			frame.put(0, (byte) i); // no two frames alike
+			sink += FlagFramer.frame(frame).remaining();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return elapsed nanoseconds.
+	 */
+	private static long stuffBits(ByteBuffer frame, int frames)
+	{
+		long start = System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+		{
+			frame.put(0, (byte) i);
+			sink += stuffBitByBit(frame).remaining();
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return elapsed nanoseconds.
+	 */
+	private static long unstuff(FlagFramer framer, ByteBuffer stuffed, ByteBuffer inbound, int frames)
+	{
+		long start = System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+		{
+			// Destuffing works in place, so start over from a fresh copy.
+			inbound.clear();
+			inbound.put(stuffed.duplicate());
+			inbound.flip();
+
+			framer.hunt(inbound);
+			sink += framer.deframe(inbound);
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * The same framing as {@link FlagFramer#frame(ByteBuffer...)}, one bit at a time.
+	 */
+	private static ByteBuffer stuffBitByBit(ByteBuffer frame)
+	{
+		int length = frame.remaining();
+		ByteBuffer out = ByteBuffer.allocate(2 + length + (length * 8 / 5 + 7) / 8 + 1);
+		int octet = 0, bits = 0, ones = 0;
+		out.put(FlagFramer.FLAG);
+
+		for (int i = frame.position(); i < frame.limit(); i++)
+		{
+			for (int b = 7; b >= 0; b--)
+			{
+				int bit = (frame.get(i) >> b) & 1;
+				octet = (octet << 1) | bit;
+				if (++bits == 8)
+				{
+					out.put((byte) octet);
+					octet = bits = 0;
+				}
+
+				ones = (bit == 1)? ones + 1 : 0;
+				if (ones == 5)
+				{
+					octet <<= 1;
+					if (++bits == 8)
+					{
+						out.put((byte) octet);
+						octet = bits = 0;
+					}
+					ones = 0;
+				}
+			}
+		}
+
+		for (int b = 7; b >= 0; b--)
+		{
+			octet = (octet << 1) | ((FlagFramer.FLAG >> b) & 1);
+			if (++bits == 8)
+			{
+				out.put((byte) octet);
+				octet = bits = 0;
+			}
+		}
+		if (bits > 0)
+			out.put((byte) ((octet << (8 - bits)) | (0xFF >> bits)));
+
+		out.flip();
+		return out;
+	}
+}
@@ -0,0 +1,104 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Frame check sequence: the 32-bit HDLC FCS, i.e. the CRC-32 of {@code java.util.zip},
+ * over every byte of an encoded frame ahead of the FCS itself.
+ * It is fed piece by piece as the frame is encoded, so a broadcast's shared info field
+ * is checksummed without being copied.
+ *
+ * Both ends must agree on it: the primary offers {@code fcs} in its SNRM and the
+ * secondary repeats it in its UA if it checks frames too.
+ *
+ * Not thread-safe, each connection has its own.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class FrameCheck
+{
+	/**
+	 * Token naming the FCS in SNRM and UA info fields.
+	 */
+	static final String NAME = "fcs";
+	/**
+	 * FCS size in bits, i.e. in characters in the text encoding.
+	 */
+	static final int BITS = 32;
+	/**
+	 * FCS size in the binary encoding.
+	 */
+	static final int LENGTH = BITS / 8;
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param offer an SNRM or UA info field, {@code null} if there was none.
+	 * @return {@code true} if it names the FCS.
+	 */
+	static boolean fromOffer(String offer)
+	{
+		if (offer != null)
+		{
+			for (String option : offer.split(","))
+			{
+				if (NAME.equals(option.trim()))
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Starts a new frame.
+	 */
+	void reset()
+	{
+		crc.reset();
+	}
+
+	void update(byte[] bytes, int offset, int length)
+	{
+		crc.update(bytes, offset, length);
+	}
+
+	/**
+	 * Adds the remaining bytes of a heap buffer, leaving its position alone.
+	 */
+	void update(ByteBuffer buffer)
+	{
+		update(buffer, buffer.position(), buffer.remaining());
+	}
+
+	/**
+	 * Adds a slice of a heap buffer.
+	 *
+	 * @param offset absolute index of the first byte.
+	 */
+	void update(ByteBuffer buffer, int offset, int length)
+	{
+		crc.update(buffer.array(), buffer.arrayOffset() + offset, length);
+	}
+
+	/**
+	 * @return the FCS of every byte added since the last {@link #reset()}.
+	 */
+	int getValue()
+	{
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * @return the FCS of a slice of a heap buffer.
+	 */
+	int of(ByteBuffer buffer, int offset, int length)
+	{
+		reset();
+		update(buffer, offset, length);
+		return getValue();
+	}
+}
@@ -0,0 +1,107 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures what the FCS costs: checksum throughput per frame size, and encoding
+ * binary frames with and without it.
+ *
+ * Usage: {@code FrameCheckBenchmark [megabytes]}.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class FrameCheckBenchmark
+{
+	private static final int DEFAULT_MEGABYTES = 256;
+	private static final int MEGABYTE = 1024 * 1024;
+	/**
+	 * Binary RR, 36-character I-frame, largest I-frame and a bulk buffer.
+	 */
+	private static final int[] SIZES = {7, 43, 7 + 512, 64 * 1024};
+
+	/**
+	 * Keeps the JIT from discarding the results.
+	 */
+	private static long sink;
+
+	public static void main(String[] args) throws UnknownHostException
+	{
+		int megabytes = (args.length > 0)? Integer.parseInt(args[0]) : DEFAULT_MEGABYTES;
+		FrameCheck check = new FrameCheck();
+
+		ByteBuffer[] buffers = new ByteBuffer[SIZES.length];
+		for (int s = 0; s < SIZES.length; s++)
+		{
+			buffers[s] = ByteBuffer.allocate(SIZES[s]);
+			for (int i = 0; i < SIZES[s]; i++)
+			{
+				buffers[s].put(i, (byte) (i * 31));
+			}
+
+			checksum(check, buffers[s], (int) ((long) megabytes * MEGABYTE / SIZES[s])); // warm up
+		}
+
+		for (int s = 0; s < SIZES.length; s++)
+		{
+			int size = SIZES[s];
+			int frames = (int) ((long) megabytes * MEGABYTE / size);
+			long elapsed = checksum(check, buffers[s], frames);
+
+			System.out.println(String.format("FCS over %6d-byte frames: %7.1f ns/frame, %6.2f ms/MB (%.0f MB/s)",
+					size, (double) elapsed / frames, elapsed / 1e6 / megabytes, megabytes / (elapsed / 1e9)));
+		}
+
+		NetFrame frame = new NetFrame(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), Types.IFrame,
+				"Anonymous: the quick brown dinosaur");
+		int frames = 2000000;
+
+		encode(frame, null, frames);
+		encode(frame, check, frames);
+		long plain = encode(frame, null, frames);
+		long checked = encode(frame, check, frames);
+
+		System.out.println(String.format("binary I-frame encode: %.1f ns without FCS, %.1f ns with FCS",
+				(double) plain / frames, (double) checked / frames));
+
+		if (sink == 42)
+			System.out.println();
+	}
+
+	/**
+	 * @return elapsed nanoseconds.
+	 */
+	private static long checksum(FrameCheck check, ByteBuffer buffer, int frames)
+	{
+		long start = System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+		{
+			buffer.put(0, (byte) i); // no two frames alike
+			sink += check.of(buffer, 0, buffer.capacity());
+		}
+
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * @return elapsed nanoseconds.
+	 */
+	private static long encode(NetFrame frame, FrameCheck check, int frames)
+	{
+		long start = System.nanoTime();
+
+		for (int i = 0; i < frames; i++)
+		{
+			frame.setNSS(i);
+			sink += WireFormat.BINARY.encode(frame, check).remaining();
+		}
+
+		return System.nanoTime() - start;
+	}
+}
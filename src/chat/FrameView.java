@@ -0,0 +1,296 @@
+package chat;
+
+import chat.NetFrame.HDLCFrame;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable, read-only view of one encoded frame sitting in a receive buffer.
+ * Decoding a frame into a view only reads the address and control field into primitives,
+ * so polls and their RR responses are handled without allocating.
+ *
+ * A view is only valid until its buffer is refilled; {@link #toNetFrame()} makes a standalone copy.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class FrameView
+{
+	private ByteBuffer buffer;
+	private WireFormat wireFormat;
+	private int frameOffset, frameLength;
+	private int infoOffset, infoLength;
+	private int address;
+	private int control;
+	/**
+	 * Width of {@code control}: 8 bits, or 16 for extended-mode I- and S-frames.
+	 */
+	private int controlBits;
+	/**
+	 * The link runs in extended (modulo 128) mode.
+	 */
+	private boolean extended = false;
+	/**
+	 * The link's FCS, {@code null} if it does not check frames.
+	 */
+	private FrameCheck frameCheck;
+	/**
+	 * The last frame decoded failed its FCS. Nothing else in the view is valid.
+	 */
+	private boolean corrupt = false;
+	/**
+	 * Finds and destuffs frames on {@code HDLC} links, keeping its place across partial reads.
+	 */
+	private final FlagFramer framer = new FlagFramer();
+	/**
+	 * Bytes of the partial {@code TEXT} frame ahead in the buffer already searched for its line break,
+	 * so a long frame arriving over many reads is scanned once.
+	 */
+	private int scanned = 0;
+
+	/**
+	 * Points this view at a text-encoded frame.
+	 *
+	 * @param offset absolute index of the first address character.
+	 * @param length of the frame, line break excluded.
+	 */
+	void wrapText(ByteBuffer buffer, int offset, int length) throws ProtocolException
+	{
+		if (length < 40)
+			throw new ProtocolException("Frame too short: " + length + " characters.");
+
+		int bits = 0;
+		for (int i = 0; i < 32; i++)
+		{
+			bits = (bits << 1) | (buffer.get(offset + i) == '1'? 1 : 0);
+		}
+		this.address = bits;
+
+		bits = 0;
+		for (int i = 32; i < 40; i++)
+		{
+			bits = (bits << 1) | (buffer.get(offset + i) == '1'? 1 : 0);
+		}
+		int end = 32 + 8 * controlOctets(bits);
+
+		if (length < end)
+			throw new ProtocolException("Frame too short: " + length + " characters.");
+
+		for (int i = 40; i < end; i++)
+		{
+			bits = (bits << 1) | (buffer.get(offset + i) == '1'? 1 : 0);
+		}
+		this.control = bits;
+		this.controlBits = end - 32;
+
+		wrap(buffer, WireFormat.TEXT, offset, length, offset + end, length - end);
+	}
+
+	/**
+	 * Points this view at a binary-encoded frame.
+	 *
+	 * @param offset absolute index of the first address byte.
+	 */
+	void wrapBinary(ByteBuffer buffer, int offset)
+	{
+		this.address = buffer.getInt(offset);
+		this.control = buffer.get(offset + 4) & 0xFF;
+
+		int octets = controlOctets(control);
+		if (octets == 2)
+			this.control = (control << 8) | (buffer.get(offset + 5) & 0xFF);
+		this.controlBits = 8 * octets;
+
+		int header = NetFrame.HEADER_LENGTH + octets - 1;
+		int length = buffer.getShort(offset + header - 2) & 0xFFFF;
+		wrap(buffer, WireFormat.BINARY, offset, header + length, offset + header, length);
+	}
+
+	private void wrap(ByteBuffer buffer, WireFormat wireFormat, int frameOffset, int frameLength, int infoOffset, int infoLength)
+	{
+		this.buffer = buffer;
+		this.wireFormat = wireFormat;
+		this.frameOffset = frameOffset;
+		this.frameLength = frameLength;
+		this.infoOffset = infoOffset;
+		this.infoLength = infoLength;
+		this.corrupt = false;
+	}
+
+	/**
+	 * Records that the frame just consumed failed its FCS.
+	 */
+	void markCorrupt()
+	{
+		this.corrupt = true;
+	}
+
+	/**
+	 * @return {@code true} if the frame just consumed failed its FCS and must be discarded.
+	 */
+	boolean isCorrupt()
+	{
+		return corrupt;
+	}
+
+	/**
+	 * @param firstOctet the first control byte of a frame.
+	 * @return the length of its control field in bytes on this link.
+	 */
+	int controlOctets(int firstOctet)
+	{
+		return ControlField.octets(extended, firstOctet);
+	}
+
+	/**
+	 * Decodes 16-bit control fields for I- and S-frames from now on.
+	 */
+	void setExtended(boolean extended)
+	{
+		this.extended = extended;
+	}
+
+	/**
+	 * Verifies and strips an FCS from every frame decoded from now on.
+	 *
+	 * @param frameCheck {@code null} to stop checking frames.
+	 */
+	void setFrameCheck(FrameCheck frameCheck)
+	{
+		this.frameCheck = frameCheck;
+	}
+
+	FrameCheck getFrameCheck()
+	{
+		return frameCheck;
+	}
+
+	FlagFramer getFramer()
+	{
+		return framer;
+	}
+
+	int getScanned()
+	{
+		return scanned;
+	}
+
+	void setScanned(int scanned)
+	{
+		this.scanned = scanned;
+	}
+
+	//*******************************GETTER METHODS************************************//
+
+	public HDLCFrame.Types getFrameType()
+	{
+		return ControlField.type(control, controlBits);
+	}
+
+	/**
+	 * @return the {@code ControlCode} of an S- or U-frame, {@code null} for I-frames.
+	 */
+	public HDLCFrame.Commands getCC()
+	{
+		return ControlField.command(control, controlBits);
+	}
+
+	/**
+	 * @return N(S), the 3-bit (7-bit extended) send sequence number of an I-frame.
+	 */
+	public int getNSS()
+	{
+		return ControlField.ns(control, controlBits);
+	}
+
+	/**
+	 * @return N(R), the 3-bit (7-bit extended) receive sequence number of an I- or S-frame.
+	 */
+	public int getNRS()
+	{
+		return ControlField.nr(control, controlBits);
+	}
+
+	/**
+	 * @return whether the P/F bit is set: a poll in a command.
+	 */
+	public boolean isPoll()
+	{
+		return ControlField.isPoll(control, controlBits);
+	}
+
+	/**
+	 * @return whether the P/F bit is set: the last frame of a response.
+	 */
+	public boolean isFinal()
+	{
+		return isPoll();
+	}
+
+	/**
+	 * @return the IPv4 address field, most significant octet first.
+	 */
+	public int getAddress()
+	{
+		return address;
+	}
+
+	/**
+	 * @return the buffer holding the frame, for reading the info slice in place.
+	 */
+	ByteBuffer getBuffer()
+	{
+		return buffer;
+	}
+
+	/**
+	 * @return absolute index of the first UTF-8 byte of the info field in {@link #getBuffer()}.
+	 */
+	int getInfoOffset()
+	{
+		return infoOffset;
+	}
+
+	int getInfoLength()
+	{
+		return infoLength;
+	}
+
+	/**
+	 * Decodes the info field. Allocates, meant for I-frames on their way to a user.
+	 */
+	public String getInfo()
+	{
+		return new String(buffer.array(), buffer.arrayOffset() + infoOffset, infoLength, StandardCharsets.UTF_8);
+	}
+
+	//*******************************HELPER METHODS************************************//
+
+	/**
+	 * @return a standalone {@code NetFrame} copy of the viewed frame.
+	 */
+	NetFrame toNetFrame()
+	{
+		if (wireFormat == WireFormat.TEXT)
+			return new NetFrame(toString(), extended);
+
+		ByteBuffer frame = buffer.duplicate();
+		frame.limit(frameOffset + frameLength).position(frameOffset);
+		return new NetFrame(frame, extended);
+	}
+
+	/**
+	 * Returns the text encoding of the viewed frame.
+	 */
+	@Override
+	public String toString()
+	{
+		if (wireFormat == WireFormat.TEXT)
+			return new String(buffer.array(), buffer.arrayOffset() + frameOffset, frameLength, StandardCharsets.UTF_8);
+
+		return toNetFrame().toString();
+	}
+}
@@ -0,0 +1,418 @@
+package chat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Puts a running {@code DinoServe} under load: opens many headless {@code ChatClient}s, each
+ * sending messages at a fixed rate, and measures how many messages the server relays per second
+ * and how long each takes from being queued at its sender to being delivered to every station.
+ *
+ * Every client runs on one thread over one {@code Selector}, so thousands of them only cost
+ * a socket each. Messages carry the time they were queued, so latencies are measured on one clock.
+ * For thousands of clients the open file limit may need raising, on both ends.
+ *
+ * Usage: {@code LoadGenerator [host] [port] [clients] [messages/s per client] [seconds]}.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class LoadGenerator
+{
+	private static final String DEFAULT_HOST = "127.0.0.1";
+	private static final int DEFAULT_PORT = 4444;
+	private static final int DEFAULT_CLIENTS = 100;
+	private static final double DEFAULT_RATE = 1;
+	private static final int DEFAULT_DURATION = 10;
+	/**
+	 * Longest wait, in milliseconds, for every client's handshake, for the last deliveries
+	 * once sending stops, and for the server's DISC.
+	 */
+	private static final long SETTLE_LIMIT = 10000;
+	/**
+	 * Most stations connecting or handshaking at a time, well within the server's listen backlog.
+	 */
+	private static final int MAX_CONNECTING = 32;
+
+	/**
+	 * One simulated client.
+	 */
+	private final class Station implements ChatClient.Listener
+	{
+		final SocketChannel channel;
+		final String name;
+		/**
+		 * {@code null} until the socket is connected.
+		 */
+		ChatClient client;
+		/**
+		 * When its next message is due, in {@code System.nanoTime()}.
+		 */
+		long nextSend;
+		int sequence = 0;
+		boolean closed = false;
+
+		Station(SocketChannel channel, String name)
+		{
+			this.channel = channel;
+			this.name = name;
+		}
+
+		/**
+		 * The socket is connected, the server's SNRM is on its way.
+		 */
+		void connected(SelectionKey key) throws IOException
+		{
+			channel.finishConnect();
+			Connection connection = new Connection(channel);
+			connection.setSelectionKey(key);
+			key.interestOps(SelectionKey.OP_READ);
+			client = new ChatClient(connection, this);
+		}
+
+		@Override
+		public void messageReceived(String message)
+		{
+			// "name: sequence sent", the time it was queued at its sender.
+			int space = message.lastIndexOf(' ');
+			try
+			{
+				long sent = Long.parseLong(message.substring(space + 1));
+				latencies.record((System.nanoTime() - sent) / 1000);
+				delivered++;
+			}
+			catch (NumberFormatException e)
+			{
+				// Someone else on the server
+			}
+		}
+
+		@Override
+		public void disconnected()
+		{
+			close();
+		}
+
+		void close()
+		{
+			if (!closed)
+			{
+				closed = true;
+				open--;
+				if (client != null)
+					client.getConnection().close();
+				else
+				{
+					try
+					{
+						channel.close();
+					}
+					catch (IOException e){}
+				}
+			}
+		}
+	}
+
+	private final Selector selector;
+	private final List<Station> stations = new ArrayList<Station>();
+	private final Histogram latencies = new Histogram();
+	private int open = 0;
+	private long sent = 0, delivered = 0;
+
+	private LoadGenerator() throws IOException
+	{
+		this.selector = Selector.open();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		String host = (args.length > 0)? args[0] : DEFAULT_HOST;
+		int port = (args.length > 1)? Integer.parseInt(args[1]) : DEFAULT_PORT;
+		int clients = (args.length > 2)? Integer.parseInt(args[2]) : DEFAULT_CLIENTS;
+		double rate = (args.length > 3)? Double.parseDouble(args[3]) : DEFAULT_RATE;
+		int duration = (args.length > 4)? Integer.parseInt(args[4]) : DEFAULT_DURATION;
+
+		new LoadGenerator().run(new InetSocketAddress(host, port), clients, rate, duration);
+	}
+
+	private void run(InetSocketAddress server, int clients, double rate, int duration) throws IOException
+	{
+		// Connecting without blocking, so a server that handshakes one station at a time
+		// gets each UA before the next station connects. Messages sent before everyone is up
+		// would reach fewer stations.
+		long deadline = System.currentTimeMillis() + SETTLE_LIMIT;
+		int settled = 0;
+		while (stations.size() < clients || settled < stations.size())
+		{
+			while (stations.size() < clients && stations.size() - settled < MAX_CONNECTING)
+				connect(server, "load" + stations.size());
+
+			select(deadline - System.currentTimeMillis());
+
+			int before = settled;
+			settled = stations.size() - connecting();
+			if (settled > before)
+				deadline = System.currentTimeMillis() + SETTLE_LIMIT;
+			else if (System.currentTimeMillis() >= deadline)
+				break;
+		}
+		int recipients = connected();
+		for (Station station : stations)
+		{
+			if (station.client == null || !station.client.isConnected())
+				station.close();
+		}
+		System.out.println(String.format("%d of %d clients connected, %.2f messages/s each for %d s",
+				recipients, clients, rate, duration));
+
+		// Spread evenly over one interval, so the queue stays ordered by nextSend.
+		long interval = (long) (1e9 / rate);
+		long start = System.nanoTime();
+		ArrayDeque<Station> sendQueue = new ArrayDeque<Station>();
+		for (int i = 0; i < stations.size(); i++)
+		{
+			Station station = stations.get(i);
+			station.nextSend = start + interval * i / stations.size();
+			sendQueue.add(station);
+		}
+
+		long end = start + duration * 1000000000L;
+		Station next;
+		while ((next = sendQueue.peek()) != null && next.nextSend < end)
+		{
+			long now = System.nanoTime();
+
+			while ((next = sendQueue.peek()) != null && next.nextSend <= now)
+			{
+				sendQueue.poll();
+				if (next.closed)
+					continue;
+
+				try
+				{
+					next.client.send(next.name + ": " + next.sequence++ + " " + System.nanoTime());
+				}
+				catch (IOException e)
+				{
+					System.err.println(next.name + " dropped: " + e.getMessage());
+					next.close();
+					continue;
+				}
+				sent++;
+				next.nextSend += interval;
+				sendQueue.add(next);
+			}
+
+			select(Math.max(1, ((next == null)? 0 : next.nextSend - now) / 1000000));
+		}
+		long sending = System.nanoTime() - start;
+
+		// Every message goes to every station, the sender included.
+		deadline = System.currentTimeMillis() + SETTLE_LIMIT;
+		while (delivered < sent * recipients && open > 0 && System.currentTimeMillis() < deadline)
+			select(deadline - System.currentTimeMillis());
+		long elapsed = System.nanoTime() - start;
+
+		disconnect();
+
+		System.out.println(String.format("sent      %10d messages, %10.1f/s", sent, sent / (sending / 1e9)));
+		System.out.println(String.format("delivered %10d of %d, %10.1f/s", delivered, sent * recipients, delivered / (elapsed / 1e9)));
+		System.out.println(String.format("latency (ms)  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+				latencies.percentile(0.5) / 1e3, latencies.percentile(0.9) / 1e3, latencies.percentile(0.99) / 1e3,
+				latencies.percentile(0.999) / 1e3, latencies.max() / 1e3));
+	}
+
+	private void connect(InetSocketAddress server, String name) throws IOException
+	{
+		SocketChannel channel = SocketChannel.open();
+		channel.configureBlocking(false);
+		Station station = new Station(channel, name);
+		channel.register(selector, SelectionKey.OP_CONNECT, station);
+		stations.add(station);
+		open++;
+
+		try
+		{
+			channel.connect(server);
+		}
+		catch (IOException e)
+		{
+			System.err.println(name + " could not connect: " + e.getMessage());
+			station.close();
+		}
+	}
+
+	/**
+	 * @return the number of stations neither past their handshake nor closed.
+	 */
+	private int connecting()
+	{
+		return open - connected();
+	}
+
+	/**
+	 * @return the number of stations past their handshake.
+	 */
+	private int connected()
+	{
+		int connected = 0;
+
+		for (Station station : stations)
+		{
+			if (!station.closed && station.client != null && station.client.isConnected())
+				connected++;
+		}
+		return connected;
+	}
+
+	/**
+	 * DISC from every station, then waits for the server to answer them.
+	 */
+	private void disconnect() throws IOException
+	{
+		for (Station station : stations)
+		{
+			if (station.closed)
+				continue;
+
+			try
+			{
+				station.client.disconnect();
+			}
+			catch (IOException e)
+			{
+				station.close();
+			}
+		}
+
+		long deadline = System.currentTimeMillis() + SETTLE_LIMIT;
+		while (open > 0 && System.currentTimeMillis() < deadline)
+			select(deadline - System.currentTimeMillis());
+
+		for (Station station : stations)
+			station.close();
+		selector.close();
+	}
+
+	/**
+	 * Waits up to {@code timeout} milliseconds for the sockets, then hands every complete frame
+	 * to its station.
+	 *
+	 * @param timeout 0 or less to only take what is ready now.
+	 */
+	private void select(long timeout) throws IOException
+	{
+		if (timeout > 0)
+			selector.select(timeout);
+		else
+			selector.selectNow();
+
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext())
+		{
+			SelectionKey key = keys.next();
+			keys.remove();
+
+			if (!key.isValid())
+				continue;
+
+			Station station = (Station) key.attachment();
+			try
+			{
+				if (key.isConnectable())
+				{
+					station.connected(key);
+					continue;
+				}
+
+				Connection connection = station.client.getConnection();
+				if (key.isWritable())
+					connection.flush();
+
+				if (key.isReadable())
+				{
+					if (connection.fill() < 0)
+						throw new IOException("closed by server");
+
+					FrameView frame;
+					while (!station.closed && (frame = connection.nextView()) != null)
+						station.client.handle(frame);
+				}
+			}
+			catch (IOException e)
+			{
+				System.err.println(station.name + " dropped: " + e.getMessage());
+				station.close();
+			}
+		}
+	}
+
+	/**
+	 * Counts of latencies in microseconds, exact below 32 and within 1/32 above,
+	 * so millions of deliveries take a fixed few kilobytes.
+	 */
+	private static final class Histogram
+	{
+		private static final int SUB_BUCKETS = 32, SUB_BITS = 5;
+
+		private final long[] counts = new long[(64 - SUB_BITS) * SUB_BUCKETS];
+		private long total = 0, max = 0;
+
+		void record(long value)
+		{
+			value = Math.max(0, value);
+			counts[index(value)]++;
+			total++;
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * @return the smallest value at or above the given fraction of all recorded, in microseconds.
+		 */
+		long percentile(double fraction)
+		{
+			long rank = (long) Math.ceil(fraction * total);
+			long seen = 0;
+
+			for (int i = 0; i < counts.length; i++)
+			{
+				seen += counts[i];
+				if (seen >= rank && seen > 0)
+					return Math.min(lowest(i), max);
+			}
+			return max;
+		}
+
+		long max()
+		{
+			return max;
+		}
+
+		private static int index(long value)
+		{
+			if (value < SUB_BUCKETS)
+				return (int) value;
+
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		private static long lowest(int index)
+		{
+			if (index < SUB_BUCKETS)
+				return index;
+
+			int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+			return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BITS);
+		}
+	}
+}
@@ -0,0 +1,381 @@
+package chat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * One direction of a simulated link, in process: what a {@code Connection} writes to its
+ * output stream comes out of its input stream, impaired. Two of them, one each way, stand in
+ * for a socket, so the sliding window can be measured under loss, bit errors, delay and
+ * limited bandwidth instead of clean loopback TCP.
+ *
+ * Every flush of the output stream is one frame, as {@code Connection.sendSRS} flushes once
+ * per frame. A frame is dropped whole, or has bits flipped, then waits for the link to be free,
+ * its serialization at the link's bandwidth, the latency and a random jitter before it can be
+ * read. Jitter larger than the gap between two frames reorders them.
+ *
+ * The fate of every frame is drawn from random numbers seeded once, so the n-th frame
+ * written is lost, corrupted or delayed the same way on every run with the same seed.
+ * Runs still differ: read timeouts and T1 go by the wall clock, so which frames get written,
+ * and in what order, and with them the frames each fate falls on, change from run to run.
+ * Impairments can be changed at any time, e.g. after the handshake.
+ *
+ * Thread-safe: one thread writes while another reads.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class LossyChannel
+{
+	/**
+	 * A frame on its way, readable from {@code due}.
+	 */
+	private static final class Frame implements Comparable<Frame>
+	{
+		final byte[] bytes;
+		final long due;
+		final long sequence;
+		int position = 0;
+
+		Frame(byte[] bytes, long due, long sequence)
+		{
+			this.bytes = bytes;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Frame other)
+		{
+			if (due != other.due)
+				return (due < other.due)? -1 : 1;
+
+			return (sequence < other.sequence)? -1 : (sequence == other.sequence)? 0 : 1;
+		}
+	}
+
+	/**
+	 * Draws loss and jitter, one of each per frame.
+	 */
+	private final Random random;
+	/**
+	 * Draws bit errors, which take more draws the longer the frame.
+	 */
+	private final Random errors;
+	private final PriorityQueue<Frame> inFlight = new PriorityQueue<Frame>();
+	private final InputStream in = new ChannelInputStream();
+	private final OutputStream out = new ChannelOutputStream();
+
+	/**
+	 * Bytes written since the last flush.
+	 */
+	private byte[] pending = new byte[256];
+	private int pendingLength = 0;
+
+	private double loss = 0;
+	private double bitErrorRate = 0;
+	private long latencyNanos = 0;
+	private long jitterNanos = 0;
+	/**
+	 * Link speed in bits per second, 0 for unlimited.
+	 */
+	private long bandwidth = 0;
+	/**
+	 * When the last frame written is done serializing.
+	 */
+	private long linkFree = 0;
+	private int readTimeout = 0;
+	private boolean closed = false;
+
+	private long sequence = 0;
+	private long framesSent = 0, framesLost = 0, framesCorrupted = 0;
+
+	/**
+	 * A clean link until impairments are set.
+	 *
+	 * @param seed of every random draw.
+	 */
+	LossyChannel(long seed)
+	{
+		this.random = new Random(seed);
+		this.errors = new Random(random.nextLong());
+	}
+
+	/**
+	 * @param loss probability that a frame is dropped whole, 0 to 1.
+	 */
+	synchronized void setLoss(double loss)
+	{
+		this.loss = loss;
+	}
+
+	/**
+	 * @param bitErrorRate probability that any one bit of a frame is flipped, 0 to 1.
+	 */
+	synchronized void setBitErrorRate(double bitErrorRate)
+	{
+		this.bitErrorRate = bitErrorRate;
+	}
+
+	/**
+	 * @param latency one-way propagation delay, in milliseconds.
+	 * @param jitter most extra delay, in milliseconds, drawn uniformly for each frame.
+	 */
+	synchronized void setDelay(double latency, double jitter)
+	{
+		this.latencyNanos = (long) (latency * 1e6);
+		this.jitterNanos = (long) (jitter * 1e6);
+	}
+
+	/**
+	 * @param bitsPerSecond link speed, 0 for unlimited.
+	 */
+	synchronized void setBandwidth(long bitsPerSecond)
+	{
+		this.bandwidth = bitsPerSecond;
+	}
+
+	/**
+	 * Like {@code Socket.setSoTimeout}: a read waiting longer throws {@code SocketTimeoutException}.
+	 *
+	 * @param timeout in milliseconds, 0 to wait forever.
+	 */
+	synchronized void setReadTimeout(int timeout)
+	{
+		this.readTimeout = timeout;
+	}
+
+	InputStream getInputStream()
+	{
+		return in;
+	}
+
+	OutputStream getOutputStream()
+	{
+		return out;
+	}
+
+	/**
+	 * Ends the stream: reads return what is still in flight, then end of stream.
+	 */
+	synchronized void close()
+	{
+		closed = true;
+		notifyAll();
+	}
+
+	synchronized long getFramesSent()
+	{
+		return framesSent;
+	}
+
+	synchronized long getFramesLost()
+	{
+		return framesLost;
+	}
+
+	synchronized long getFramesCorrupted()
+	{
+		return framesCorrupted;
+	}
+
+	private synchronized void write(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (closed)
+			throw new IOException("Channel closed.");
+
+		if (pendingLength + length > pending.length)
+			pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+
+		System.arraycopy(bytes, offset, pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	/**
+	 * Sends the bytes written since the last flush as one frame.
+	 */
+	private synchronized void send()
+	{
+		if (pendingLength == 0)
+			return;
+
+		byte[] frame = Arrays.copyOf(pending, pendingLength);
+		pendingLength = 0;
+		framesSent++;
+
+		// Two draws for every frame, whatever its length or fate.
+		boolean lost = random.nextDouble() < loss;
+		long jitter = (long) (random.nextDouble() * jitterNanos);
+
+		// The frame occupies the link while it is serialized, lost or not.
+		long now = System.nanoTime();
+		long start = Math.max(now, linkFree);
+		long serialization = (bandwidth > 0)? frame.length * 8L * 1000000000L / bandwidth : 0;
+		linkFree = start + serialization;
+
+		if (lost)
+		{
+			framesLost++;
+			return;
+		}
+
+		if (corrupt(frame))
+			framesCorrupted++;
+
+		inFlight.add(new Frame(frame, linkFree + latencyNanos + jitter, sequence++));
+		notifyAll();
+	}
+
+	/**
+	 * Flips every bit hit by an error, drawing the gap to the next one from a geometric
+	 * distribution so a clean frame costs one draw, not one per bit.
+	 *
+	 * @return {@code true} if any bit was flipped.
+	 */
+	private boolean corrupt(byte[] frame)
+	{
+		if (bitErrorRate <= 0)
+			return false;
+
+		long bits = frame.length * 8L;
+		long bit = gap();
+		boolean hit = bit < bits;
+
+		while (bit < bits)
+		{
+			frame[(int) (bit >>> 3)] ^= (byte) (0x80 >>> (bit & 7));
+			bit += 1 + gap();
+		}
+
+		return hit;
+	}
+
+	/**
+	 * @return the number of clean bits before the next error, capped well past any frame.
+	 */
+	private long gap()
+	{
+		if (bitErrorRate >= 1)
+			return 0;
+
+		double u = 1 - errors.nextDouble(); // (0, 1]
+		return (long) Math.min(Math.floor(Math.log(u) / Math.log1p(-bitErrorRate)), Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Waits for the next frame due.
+	 *
+	 * @return {@code -1} at end of stream, the number of bytes read otherwise.
+	 */
+	private synchronized int read(byte[] bytes, int offset, int length) throws IOException
+	{
+		if (length == 0)
+			return 0;
+
+		long deadline = (readTimeout > 0)? System.nanoTime() + readTimeout * 1000000L : Long.MAX_VALUE;
+
+		while (true)
+		{
+			Frame head = inFlight.peek();
+			long now = System.nanoTime();
+
+			if (head != null && head.due <= now)
+			{
+				int read = Math.min(length, head.bytes.length - head.position);
+				System.arraycopy(head.bytes, head.position, bytes, offset, read);
+				head.position += read;
+				if (head.position == head.bytes.length)
+					inFlight.poll();
+				return read;
+			}
+
+			if (head == null && closed)
+				return -1;
+
+			if (now >= deadline)
+				throw new SocketTimeoutException("Read timed out");
+
+			long wait = Math.min(deadline, (head == null)? Long.MAX_VALUE : head.due) - now;
+
+			try
+			{
+				if (wait >= Long.MAX_VALUE / 2)
+					wait();
+				else
+					wait(wait / 1000000L, (int) (wait % 1000000L));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted.", e);
+			}
+		}
+	}
+
+	private synchronized int available()
+	{
+		Frame head = inFlight.peek();
+		return (head != null && head.due <= System.nanoTime())? head.bytes.length - head.position : 0;
+	}
+
+	private final class ChannelInputStream extends InputStream
+	{
+		@Override
+		public int read() throws IOException
+		{
+			byte[] one = new byte[1];
+			return (LossyChannel.this.read(one, 0, 1) < 0)? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException
+		{
+			return LossyChannel.this.read(bytes, offset, length);
+		}
+
+		@Override
+		public int available()
+		{
+			return LossyChannel.this.available();
+		}
+
+		@Override
+		public void close()
+		{
+			LossyChannel.this.close();
+		}
+	}
+
+	private final class ChannelOutputStream extends OutputStream
+	{
+		@Override
+		public void write(int b) throws IOException
+		{
+			LossyChannel.this.write(new byte[] {(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException
+		{
+			LossyChannel.this.write(bytes, offset, length);
+		}
+
+		@Override
+		public void flush()
+		{
+			send();
+		}
+
+		@Override
+		public void close()
+		{
+			LossyChannel.this.close();
+		}
+	}
+}
@@ -1,13 +1,8 @@
 package chat;
 
 import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.util.BitSet;
-import java.util.zip.CRC32;
-import java.util.zip.Checksum;
-
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a single link-layer HDLC frame.
@@ -19,9 +14,20 @@ import com.google.common.collect.HashBiMap;
  */
 public class NetFrame
 {
-	@SuppressWarnings("unused")
-	private static final String FLAG = "01111110";
-	private static final int MAX_INFO_FIELD_SIZE = 64*8;
+	/**
+	 * Longest info field sent on a link that segments, in bytes. Longer messages are split
+	 * over several I-frames, see {@link Segmentation}.
+	 */
+	static final int MAX_INFO_FIELD_SIZE = 64*8;
+	/**
+	 * Longest info field the 16-bit length field of the binary encoding can describe, in bytes.
+	 */
+	static final int MAX_ENCODED_INFO_LENGTH = 0xFFFF;
+	/**
+	 * Bytes ahead of the info field in the binary encoding: address, control and info length.
+	 * Extended-mode I- and S-frames have one more control byte.
+	 */
+	static final int HEADER_LENGTH = 4 + 1 + 2;
 	
 	/**
 	 * The HDLC frame types.
@@ -88,6 +94,12 @@ public class NetFrame
 			 */
 			SNRM,
 			SNRME, SIM,
+			/**
+			 * Set asynchronous balanced mode
+			 * Either end sends I-frames whenever its window allows, without waiting for a poll.
+			 */
+			SABM,
+			SABME,
 			/**
 			 * Disconnect
 			 */
@@ -96,63 +108,30 @@ public class NetFrame
 		}
 	}
 		
+	private StationAddress addr;
 	/**
-	 * Placeholder {@code String}s for each {@code NetFrame} {@code HDLCFrame}'s {@code ControlCode}.
-	 */
-	private static BiMap<HDLCFrame.Types, String> FC;
-	static
-    {
-		FC = HashBiMap.create();
-		FC.put(HDLCFrame.Types.IFrame, "0NSSPNRS");
-		FC.put(HDLCFrame.Types.SFrame, "10CCPNRS");
-		FC.put(HDLCFrame.Types.UFrame, "11CCPBBB");
-    }
-        
-	private static BiMap<HDLCFrame.Commands, String> CC;
-    static
-    {
-		CC = HashBiMap.create();
-		CC.put(HDLCFrame.Commands.RR,   "00");
-		CC.put(HDLCFrame.Commands.RNR,  "01");
-		CC.put(HDLCFrame.Commands.REJ,  "10");
-		CC.put(HDLCFrame.Commands.SREJ, "11");
-		
-		CC.put(HDLCFrame.Commands.SNRM,  "00001");
-		CC.put(HDLCFrame.Commands.SNRME, "11011");
-		CC.put(HDLCFrame.Commands.SIM,   "11000");
-		CC.put(HDLCFrame.Commands.DISC,  "00010");
-//		CC.put(HDLCFrame.Commands.RD,    "00010");
-		CC.put(HDLCFrame.Commands.UA,    "00110");
-		CC.put(HDLCFrame.Commands.RIM,   "10000");
-		CC.put(HDLCFrame.Commands.UI,    "00000");
-		CC.put(HDLCFrame.Commands.UP,    "00100");
-		CC.put(HDLCFrame.Commands.RSET,  "11001");
-		CC.put(HDLCFrame.Commands.XID,   "11101");
-		CC.put(HDLCFrame.Commands.FRMR,  "10001");
-    }
-	
-	private InetAddress addr;
-	/**
-	 * Frame Control
-	 */
-	private String fc;
-	private String info;
-	private String infoRemainder;
-	/**
-	 * N(S) the sequence number of the sent frame.
-	 * This is incremented for successive I-frames, modulo 8.
-	 */
-	private String NSS;
-	/**
+	 * Frame Control, 8 bits or 16 for extended I- and S-frames.
+	 * Holds the N(S) sequence number of the sent frame, incremented for successive I-frames, and
 	 * N(R), the receive sequence number. Both I and S frames contain a receive sequence number N(R).
 	 * Its value is always the first frame not received; it acknowledges that all frames with N(S)
-	 * values up to N(R)-1 (modulo 8) have been received and indicates the N(S) of the next frame it expects to receive.
+	 * values up to N(R)-1 have been received and indicates the N(S) of the next frame it expects to receive.
+	 * 
+	 * @see ControlField
 	 */
-	private String NRS;
+	private int fc;
+	private String info;
 	/**
 	 * Poll/Final value.
 	 */
 	private HDLCFrame pf;
+	/**
+	 * Extended (modulo 128) I- or S-frame, with a 16-bit control field and 7-bit N(S)/N(R).
+	 */
+	private boolean extended = false;
+	/**
+	 * Info field shared with every other copy of a broadcast, {@code null} if this frame has its own.
+	 */
+	private Broadcast broadcast;
 	/**
 	 * The {@code ControlCode} this frame is carrying.
 	 */
@@ -168,54 +147,97 @@ public class NetFrame
 	 * 
 	 * @param fromString encoded as binary {@code String}
 	 */
-	public NetFrame (String fromString) throws UnknownHostException, NullPointerException
+	public NetFrame (String fromString) throws NullPointerException
+	{
+		this(fromString, false);
+	}
+	
+	/**
+	 * Parses a binary string to create a {@code NetFrame}
+	 * 
+	 * @param fromString encoded as binary {@code String}
+	 * @param extended {@code true} if the link runs in extended (modulo 128) mode.
+	 */
+	NetFrame (String fromString, boolean extended) throws NullPointerException
 	{
-		//frame = frame.replaceAll(FLAG, "");
-        
 		if (fromString.isEmpty())
 			throw new NullPointerException("Empty frame!");
 		
-		this.addr = getAddrFromBinary(fromString.substring(0, 32));
-		this.fc = fromString.substring(32, 40);
-                   
-		if (fc.charAt(0) == '0')
-		{
-			this.type = HDLCFrame.Types.IFrame;
-		}
-		else if (fc.charAt(1) == '0')
-		{
-			this.type = HDLCFrame.Types.SFrame;
-		}
-		else if (fc.charAt(1) == '1')
+		int firstOctet = parseBits(fromString, 32, 8);
+		int end = 32 + 8 * ControlField.octets(extended, firstOctet);
+		
+		this.addr = StationAddress.fromBits(fromString, 0);
+		this.fc = parseBits(fromString, 32, end - 32);
+		this.extended = end - 32 == 16;
+		
+		parseControl(fromString.length() > end? fromString.substring(end) : "");
+	}
+	
+	/**
+	 * Decodes a binary-encoded {@code NetFrame}, consuming its bytes.
+	 * 
+	 * @param buffer in read mode, holding at least one complete frame.
+	 * @param extended {@code true} if the link runs in extended (modulo 128) mode.
+	 * @see WireFormat#BINARY
+	 */
+	NetFrame (ByteBuffer buffer, boolean extended)
+	{
+		this.addr = StationAddress.of(buffer.getInt());
+		this.fc = buffer.get() & 0xFF;
+		
+		if (ControlField.octets(extended, fc) == 2)
 		{
-			this.type = HDLCFrame.Types.UFrame;
+			this.fc = (fc << 8) | (buffer.get() & 0xFF);
+			this.extended = true;
 		}
 		
-		switch (this.type)
+		int length = buffer.getShort() & 0xFFFF;
+		String info = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		
+		parseControl(info);
+	}
+	
+	/**
+	 * Auto-detects type, command and Poll/Final from {@code fc}.
+	 * The P/F bit reads as Poll: only the receiver's role tells a poll from a final frame.
+	 * 
+	 * @param info whatever followed the control field.
+	 */
+	private void parseControl(String info)
+	{
+		this.type = ControlField.type(fc, controlBits());
+		this.cc = ControlField.command(fc, controlBits());
+		this.pf = ControlField.isPoll(fc, controlBits())? HDLCFrame.Poll : null;
+		
+		if (type == HDLCFrame.Types.IFrame || (type == HDLCFrame.Types.UFrame && !info.isEmpty()))
+			this.info = info;
+	}
+	
+	/**
+	 * @return {@code length} '0'/'1' characters from {@code offset} as an int.
+	 */
+	private static int parseBits(String text, int offset, int length)
+	{
+		int bits = 0;
+		
+		for (int i = offset; i < offset + length; i++)
 		{
-            case IFrame:
-            	this.info = fromString.substring(40);
-            	this.NSS = fc.substring(1, 4);
-            	this.NRS = fc.substring(5);
-                break;
-
-            case SFrame:
-            	this.NRS = fc.substring(5);
-            	this.cc = CC.inverse().get(fc.substring(2,4));
-                break;
-                
-            case UFrame:
-            	this.cc = CC.inverse().get(fc.substring(2,4)+fc.substring(5));
-                break; 
+			bits = (bits << 1) | (text.charAt(i) == '1'? 1 : 0);
 		}
 		
-		this.pf = (fc.charAt(4) == '1')? HDLCFrame.Poll : HDLCFrame.Final;
+		return bits;
 	}
 	
 	/**
 	 * Used to create an {@code SFrame} from parameters.
 	 */
 	public NetFrame (InetAddress destAddr, HDLCFrame.Types type, HDLCFrame.Commands code)
+	{
+		this(StationAddress.of(destAddr), type, code);
+	}
+	
+	NetFrame (StationAddress destAddr, HDLCFrame.Types type, HDLCFrame.Commands code)
 	{
 		this.addr = destAddr;
 		this.setType(type, code);
@@ -231,17 +253,35 @@ public class NetFrame
 	 * @throws UnknownHostException 
 	 */
 	public NetFrame (InetAddress destAddr, HDLCFrame.Types type, String info)
+	{
+		this(StationAddress.of(destAddr), type, info);
+	}
+	
+	NetFrame (StationAddress destAddr, HDLCFrame.Types type, String info)
 	{
 		this.addr = destAddr;
         this.setInfo(info);
 		this.setType(type, null);
 	}
+	
+	/**
+	 * Used to create an {@code IFrame} carrying a broadcast's pre-encoded info field.
+	 * 
+	 * @param addr of the client in TCP/IP.
+	 * @param broadcast shared with every other recipient.
+	 */
+	NetFrame (StationAddress destAddr, Broadcast broadcast)
+	{
+		this.addr = destAddr;
+		this.broadcast = broadcast;
+		this.setType(HDLCFrame.Types.IFrame, null);
+	}
 
 	//*******************************SETTER METHODS************************************//
 	
 	/**
 	 * Sets this {@code NetFrame}'s {@code HDLCFrame} and {@code ControlCode}
-	 * by replacing placeholder values in {@code FC}.
+	 * from the {@code ControlField} tables.
 	 * 
 	 * @param type this {@code NetFrame}'s {@code HDLCFrame} enum value
 	 * @param code the {@code ControlCode} of this {@code NetFrame}
@@ -250,77 +290,84 @@ public class NetFrame
 	{
 		this.cc = code;
 		this.type = type;
-		String tempfc = FC.get(type);
-		
-		switch (type)
-		{
-			case IFrame:
-				break;
-			
-			case SFrame:
-				tempfc = tempfc.replace("CC", CC.get(code).substring(0, 2));
-				break;
-				
-			case UFrame:
-				tempfc = tempfc.replace("CC", CC.get(code).substring(0, 2));
-				tempfc = tempfc.replace("BBB", CC.get(code).substring(2));
-				break;	
-		}
-		
-		this.fc = tempfc;
+		this.fc = ControlField.encode(type, code);
 	}
 	
+	/**
+	 * Sets the info field as is. Long messages are split by the {@code Connection} sending them.
+	 */
 	void setInfo(String info)
 	{
-		if (info.length() > MAX_INFO_FIELD_SIZE)
-		{
-			this.infoRemainder = info.substring(MAX_INFO_FIELD_SIZE+1);
-			this.info = info.substring(0, MAX_INFO_FIELD_SIZE);
-		}
-		else
-			this.info = info;
+		this.info = info;
 	}
 	
 	/**
+	 * Sets the P/F bit: Poll on a command, Final on the last frame of a response.
 	 * 
-	 * @param set Poll on {@code true} or Final on {@code false}
+	 * @param pf {@code null} to clear it.
 	 */
 	public void setPollFinal(HDLCFrame pf)
 	{
 		this.pf = pf;
-		this.fc = fc.replace("P", String.valueOf(pf == HDLCFrame.Poll? 1:0));
+		this.fc = ControlField.withPoll(fc, controlBits(), pf != null);
 	}
 
 	/**
 	 * Sets the N(S), the sequence number of the sent frame.
+	 * Can be called again, e.g. when the frame is retransmitted.
 	 * @param nss
 	 */
 	public void setNSS(int nss)
 	{
-		this.NSS = fixedLenthDecimalString(nss, 3);
-		this.fc = fc.replace("NSS", NSS);
+		this.fc = ControlField.withNS(fc, controlBits(), nss);
 	}
 	
 	/**
 	 * Sets the N(R), the receive sequence number acknowledgement from the window.
+	 * Can be called again, e.g. when the frame is retransmitted.
 	 * @param nrs
 	 */
 	public void setNRS(int nrs)
 	{
-		this.NRS = fixedLenthDecimalString (nrs, 3);
-		this.fc = fc.replace("NRS", NRS);
+		this.fc = ControlField.withNR(fc, controlBits(), nrs);
+	}
+	
+	/**
+	 * Widens the control field of an I- or S-frame to the 16-bit extended format.
+	 * U-frames always keep their 8-bit control field.
+	 */
+	void setExtended()
+	{
+		if (extended || type == HDLCFrame.Types.UFrame)
+			return;
+		
+		this.extended = true;
+		this.fc = ControlField.extend(fc);
 	}
 
 	//*******************************GETTER METHODS************************************//
 	
 	InetAddress getDestinationAddress()
+	{
+		return this.addr.getInetAddress();
+	}
+	
+	StationAddress getStation()
 	{
 		return this.addr;
 	}
 	
 	public String getInfo()
 	{
-		return this.info;
+		return (broadcast == null)? this.info : broadcast.getInfo();
+	}
+	
+	/**
+	 * @return the shared info field of a broadcast copy, {@code null} for other frames.
+	 */
+	Broadcast getBroadcast()
+	{
+		return broadcast;
 	}
 	
 	/**
@@ -348,19 +395,41 @@ public class NetFrame
 		return this.pf;
 	}
 	
+	/**
+	 * @return whether the P/F bit is set: a poll in a command.
+	 */
 	public boolean isPoll()
 	{
-		return getPollFinal() == HDLCFrame.Poll;
+		return ControlField.isPoll(fc, controlBits());
 	}
 	
+	/**
+	 * @return whether the P/F bit is set: the last frame of a response.
+	 */
 	public boolean isFinal()
 	{
-		return getPollFinal() == HDLCFrame.Final;
+		return isPoll();
+	}
+	
+	boolean isExtended()
+	{
+		return extended;
 	}
 	
-	String getRemaining ()
+	/**
+	 * @return N(S), the send sequence number of an I-frame.
+	 */
+	int getNSS()
 	{
-		return this.infoRemainder;
+		return ControlField.ns(fc, controlBits());
+	}
+	
+	/**
+	 * @return N(R), the receive sequence number of an I- or S-frame.
+	 */
+	int getNRS()
+	{
+		return ControlField.nr(fc, controlBits());
 	}
 	
 	//*******************************HELPER METHODS************************************//
@@ -371,114 +440,80 @@ public class NetFrame
 	@Override
 	public String toString()
 	{
-		//String frame = FLAG + getAddrInBinary(addr);
-        String frame = getAddrInBinary(addr) + this.fc;
+        String frame = headerString();
 		
-		if (info != null)
-			frame += info;
+		if (getInfo() != null)
+			frame += getInfo();
 		
-		//return (frame + FLAG);
         return frame;
 	}
 	
-	protected int getReceivedFrameIndex()
+	/**
+	 * @return the address and control field in the text encoding.
+	 */
+	String headerString()
 	{
-		return Integer.parseInt(fc.substring(5, 7));
+		return addr.getBits() + ControlField.toText(fc, controlBits());
 	}
 	
-	static String getAddrInBinary(InetAddress addr)
+	/**
+	 * @return the size of this frame in the binary encoding.
+	 */
+	int getEncodedLength()
 	{
-		String res = "";
-		
-		for (String threeDigitNum : addr.toString().substring(1).split("\\."))
-		{
-            res += padLeft(Integer.toBinaryString(Integer.parseInt(threeDigitNum)));
-		}
-                
-		return res;
+		return getHeaderLength() + (getInfo() == null? 0 : getInfo().getBytes(StandardCharsets.UTF_8).length);
 	}
 	
-    public static String padLeft(String s) {
-        while (s.length() != 8)
-            s = "0" + s;
-        return s;
-    }
-
 	/**
-	 * Assuming the input is a string 4*8 chars in length,
-	 * this method will convert each block of 8 chars into
-	 * a decimal number to form an IP address.
-	 * @param Addr the {@code String} representing an IP in binary
-	 * @return the IPv4 address
-	 * @throws UnknownHostException 
+	 * @return the size of the address, control and length fields in the binary encoding.
 	 */
-	static InetAddress getAddrFromBinary(String addr) throws UnknownHostException
+	int getHeaderLength()
 	{
-		String result = "", binary;
-		
-		for (int i = 0; i < 32; i+=8)
-		{
-			binary = addr.substring(i, i + 8);
-                        
-			result += Integer.parseInt(binary, 2);		
-            result += ".";
-		}
-		
-        result = result.substring(0, result.length()-1);
-                
-		return InetAddress.getByName(result);
+		return HEADER_LENGTH + controlBits() / 8 - 1;
 	}
 	
 	/**
+	 * Writes this frame in the binary encoding.
 	 * 
-	 * @param length the desired length of the formatted {@code String}.
-	 * @param input that is to be formatted.
-	 * @return
+	 * @see WireFormat#BINARY
 	 */
-	static String fixedLenthDecimalString(int input, int length) {
-	    return String.format("%0"+length+"d", input);
+	void encode(ByteBuffer buffer)
+	{
+		byte[] data = (getInfo() == null)? new byte[0] : getInfo().getBytes(StandardCharsets.UTF_8);
+		
+		encodeHeader(buffer, data.length);
+		buffer.put(data);
 	}
 	
-	static String calculateCrc(BitSet input)
+	/**
+	 * Writes everything ahead of the info field in the binary encoding.
+	 * 
+	 * @param infoLength size of the info field that will follow, in bytes.
+	 * @throws IllegalArgumentException if it is over {@link #MAX_ENCODED_INFO_LENGTH}.
+	 */
+	void encodeHeader(ByteBuffer buffer, int infoLength)
 	{
-		// get bytes from string
-		byte bytes[] = toByteArray(input);
-		 
-		Checksum checksum = new CRC32();
+		if (infoLength > MAX_ENCODED_INFO_LENGTH)
+			throw new IllegalArgumentException("Info field of " + infoLength + " bytes, over the "
+					+ MAX_ENCODED_INFO_LENGTH + " its length field holds.");
 		
-		// update the current checksum with the specified array of bytes
-		checksum.update(bytes, 0, bytes.length);
-		 
-		// get the current checksum value
-		String crc = checksum.toString();
-		 
-		return crc;
+		buffer.putInt(addr.toInt());
+		if (extended)
+			buffer.put((byte) (fc >> 8));
+		buffer.put((byte) fc);
+		buffer.putShort((short) infoLength);
 	}
 	
-	static byte[] toByteArray(BitSet bits)
+	protected int getReceivedFrameIndex()
 	{
-		byte[] bytes = new byte[bits.length() / 8 + 1];
-		
-		for (int i = 0; i < bits.length(); i++)
-		{
-			if (bits.get(i))
-			{
-				bytes[bytes.length - i / 8 - 1] |= 1 << (i % 8);
-			}
-		}
-		return bytes;
+		return getNRS();
 	}
 	
-	static BitSet fromByteArray(byte[] bytes)
+	/**
+	 * @return the width of {@code fc}: 8 bits, or 16 for extended I- and S-frames.
+	 */
+	private int controlBits()
 	{
-		BitSet bits = new BitSet();
-		for (int i = 0; i < bytes.length * 8; i++)
-		{
-			if ((bytes[bytes.length - i / 8 - 1] & (1 << (i % 8))) > 0)
-			{
-				bits.set(i);
-			}
-		}
-		return bits;
+		return extended? 16 : 8;
 	}
-}
\ No newline at end of file
+}
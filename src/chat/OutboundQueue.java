@@ -0,0 +1,152 @@
+package chat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Broadcasts waiting to be sent to one station: a bounded ring that any number of threads
+ * add to and only the thread driving the station takes from. Lock-free: a producer claims a slot
+ * by moving the tail and then fills it, the consumer empties a slot before moving the head past it.
+ *
+ * A full queue refuses what is added to it, so a station that does not keep up costs a fixed
+ * {@code capacity} references, whatever the traffic. Its {@link Overflow} policy decides what
+ * becomes of the broadcasts refused.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class OutboundQueue
+{
+	/**
+	 * What becomes of a station whose queue is full.
+	 */
+	static enum Overflow
+	{
+		/**
+		 * Broadcasts that do not fit are lost to the station.
+		 */
+		DROP("drop"),
+		/**
+		 * Broadcasts that do not fit are lost to the station, which gets a single notice of how
+		 * many once it has caught up.
+		 */
+		COALESCE("coalesce"),
+		/**
+		 * The station is disconnected.
+		 */
+		EVICT("evict");
+
+		private final String name;
+
+		private Overflow(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * @return the policy of that name, {@code DROP} if there is none.
+		 */
+		static Overflow forName(String name)
+		{
+			for (Overflow policy : values())
+			{
+				if (policy.name.equals(name))
+					return policy;
+			}
+
+			return DROP;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Broadcasts a station may fall behind by, by default.
+	 */
+	static final int DEFAULT_CAPACITY = 1024;
+
+	private final AtomicReferenceArray<Broadcast> slots;
+	private final int mask;
+	/**
+	 * Number of broadcasts ever taken and ever claimed. Only the consumer moves {@code head}.
+	 */
+	private final AtomicLong head = new AtomicLong(), tail = new AtomicLong();
+
+	/**
+	 * @param capacity rounded up to a power of two.
+	 */
+	OutboundQueue(int capacity)
+	{
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+
+		this.slots = new AtomicReferenceArray<Broadcast>(size);
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Adds a broadcast unless the queue is full. Safe from any thread.
+	 *
+	 * @return {@code false} if it was refused.
+	 */
+	boolean offer(Broadcast message)
+	{
+		long claimed;
+
+		do
+		{
+			claimed = tail.get();
+			if (claimed - head.get() >= slots.length())
+				return false;
+		}
+		while (!tail.compareAndSet(claimed, claimed + 1));
+
+		slots.lazySet((int) claimed & mask, message);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest broadcast. Only the thread driving the station may call it.
+	 *
+	 * @return {@code null} if the queue is empty, or its oldest slot is claimed but not filled yet.
+	 */
+	Broadcast poll()
+	{
+		long taken = head.get();
+		int index = (int) taken & mask;
+		Broadcast message = slots.get(index);
+
+		if (message == null)
+			return null;
+
+		// Emptied before the head moves on, so the producer that reuses it finds it empty.
+		slots.lazySet(index, null);
+		head.lazySet(taken + 1);
+		return message;
+	}
+
+	/**
+	 * @return the number of broadcasts queued, approximate while others are added or taken.
+	 */
+	int size()
+	{
+		long taken = head.get();
+		return (int) Math.min(tail.get() - taken, slots.length());
+	}
+
+	boolean isEmpty()
+	{
+		return size() == 0;
+	}
+
+	int capacity()
+	{
+		return slots.length();
+	}
+}
@@ -0,0 +1,367 @@
+package chat;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when the primary polls each station next. A station that answered with I-frames is
+ * polled again right away; one that answered with nothing to send waits twice as long each time,
+ * from {@code minInterval} up to {@code maxInterval}, which bounds how late its next message can be
+ * picked up. A station owing acknowledgements is polled before its retransmission timeout (T1)
+ * runs out, and within {@code minInterval} once half its send window is waiting for them.
+ *
+ * A poll left unanswered for T1 is sent again, up to {@code MAX_MISSED_POLLS} (N2) times
+ * in a row; then the station is given up for dead, as is one that leaves its SNRM or SABM
+ * unanswered for T1. Idle stations keep being polled at least every
+ * {@code maxInterval}, which keeps their link alive and finds the dead ones.
+ *
+ * On a balanced (SABM) link stations send without waiting to be polled, so their polls only ask for
+ * acknowledgements and keep the link alive: one that sent I-frames is not polled again right away.
+ *
+ * Counts every poll and every productive one, i.e. answered with I-frames, for the poll-efficiency ratio.
+ *
+ * Poll and response timers hang off a {@code TimingWheel}, armed and disarmed in O(1), which the
+ * engine may share for timers of its own. They are for single-threaded engines; {@link #backOff},
+ * {@link #count} and the counters are safe from any thread.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class PollScheduler
+{
+	/**
+	 * Longest, in milliseconds, an idle station goes without a poll by default.
+	 */
+	static final int DEFAULT_MAX_POLL_INTERVAL = 640;
+	/**
+	 * N2: polls in a row a station may leave unanswered, T1 each, before it is given up for dead.
+	 */
+	static final int MAX_MISSED_POLLS = 3;
+
+	/**
+	 * The station's next poll is due.
+	 */
+	private final class PollTimer extends TimingWheel.Timer
+	{
+		private final Connection station;
+
+		PollTimer(Connection station)
+		{
+			this.station = station;
+		}
+
+		@Override
+		void expired()
+		{
+			due.add(station);
+		}
+	}
+
+	/**
+	 * The station has not answered its poll within T1: poll it again, or give it up.
+	 * Not answering the SNRM or SABM gives it up right away.
+	 */
+	private final class ResponseTimer extends TimingWheel.Timer
+	{
+		private final Connection station;
+
+		ResponseTimer(Connection station)
+		{
+			this.station = station;
+		}
+
+		@Override
+		void expired()
+		{
+			if (station.state == Connection.State.HANDSHAKE)
+			{
+				dead.add(station);
+				return;
+			}
+
+			if (station.state != Connection.State.POLLED)
+				return;
+
+			station.state = Connection.State.READY;
+
+			if (++station.missedPolls > MAX_MISSED_POLLS)
+				dead.add(station);
+			else
+				due.add(station);
+		}
+	}
+
+	private final int minInterval, maxInterval;
+	private final TimingWheel timers = new TimingWheel();
+	/**
+	 * Stations whose poll is due, and stations given up for dead, in the order their timers fired.
+	 */
+	private final ArrayDeque<Connection> due = new ArrayDeque<Connection>(), dead = new ArrayDeque<Connection>();
+	private final AtomicLong polls = new AtomicLong(), productivePolls = new AtomicLong();
+
+	/**
+	 * @param minInterval delay, in milliseconds, before polling a station that just answered with nothing to send.
+	 * @param maxInterval most an idle station's delay grows to, in milliseconds.
+	 */
+	PollScheduler(int minInterval, int maxInterval)
+	{
+		this.minInterval = minInterval;
+		this.maxInterval = Math.max(minInterval, maxInterval);
+	}
+
+	/**
+	 * Arms a station's poll for {@code delay} milliseconds from now.
+	 * A station already scheduled keeps the earlier of its two due times.
+	 */
+	void schedule(Connection station, long delay)
+	{
+		createTimers(station);
+
+		if (station.pollTimer.isScheduled() && station.pollTimer.getDeadline() <= System.currentTimeMillis() + delay)
+			return;
+
+		if (delay <= 0)
+		{
+			// Due now, rather than at the next tick.
+			timers.cancel(station.pollTimer);
+			due.add(station);
+			return;
+		}
+
+		timers.schedule(station.pollTimer, delay);
+	}
+
+	/**
+	 * The SNRM or SABM went out: gives the station T1 to answer with UA.
+	 */
+	void handshaking(Connection station)
+	{
+		createTimers(station);
+		station.state = Connection.State.HANDSHAKE;
+		timers.schedule(station.responseTimer, station.getTimeout());
+	}
+
+	private void createTimers(Connection station)
+	{
+		if (station.pollTimer == null)
+		{
+			station.pollTimer = new PollTimer(station);
+			station.responseTimer = new ResponseTimer(station);
+		}
+	}
+
+	/**
+	 * Takes a station out for good, e.g. once it is terminated.
+	 */
+	void remove(Connection station)
+	{
+		station.state = null;
+
+		if (station.pollTimer != null)
+		{
+			timers.cancel(station.pollTimer);
+			timers.cancel(station.responseTimer);
+		}
+	}
+
+	/**
+	 * @return the next station whose poll is due; {@code null} if none is due yet.
+	 */
+	Connection nextDue()
+	{
+		timers.advance();
+		return next(due);
+	}
+
+	/**
+	 * @return the next station that left {@code MAX_MISSED_POLLS} polls in a row, or its SNRM or SABM,
+	 * unanswered; {@code null} if there is none.
+	 */
+	Connection nextDead()
+	{
+		timers.advance();
+		return next(dead);
+	}
+
+	private static Connection next(ArrayDeque<Connection> stations)
+	{
+		Connection next;
+
+		do
+		{
+			next = stations.poll();
+		}
+		while (next != null && next.state == null); // removed since
+
+		return next;
+	}
+
+	/**
+	 * @return milliseconds until the next timer is due, {@code -1} if there is no station to poll.
+	 */
+	long nextDelay()
+	{
+		if (!due.isEmpty() || !dead.isEmpty())
+			return 0;
+
+		return timers.nextDelay();
+	}
+
+	/**
+	 * @return the wheel the poll timers hang off, for the engine's own timers.
+	 */
+	TimingWheel timers()
+	{
+		return timers;
+	}
+
+	/**
+	 * An RR+P went out: counts it and gives the station T1 to answer.
+	 */
+	void polled(Connection station)
+	{
+		count(station);
+		timers.schedule(station.responseTimer, station.getTimeout());
+	}
+
+	/**
+	 * An RR+P went out. Counts it only, for engines that time the response themselves.
+	 */
+	void count(Connection station)
+	{
+		polls.incrementAndGet();
+		station.polledAt = System.currentTimeMillis();
+		station.state = Connection.State.POLLED;
+	}
+
+	/**
+	 * The station answered its poll, or sent more after it; arms its next poll.
+	 *
+	 * @param productive {@code true} if it sent I-frames.
+	 */
+	void answered(Connection station, boolean productive)
+	{
+		if (station.responseTimer != null)
+			timers.cancel(station.responseTimer);
+
+		schedule(station, backOff(station, productive));
+	}
+
+	/**
+	 * I-frames went out to the station: poll it for the acknowledgement in time,
+	 * however long it has been idle.
+	 */
+	void sent(Connection station)
+	{
+		if (station.state != Connection.State.POLLED)
+			schedule(station, sentDelay(station));
+	}
+
+	/**
+	 * @return how soon, in milliseconds, a station that was just sent I-frames should be polled
+	 * for the acknowledgement.
+	 */
+	long sentDelay(Connection station)
+	{
+		return station.isWindowFilling()? minInterval : acknowledgementDelay(station);
+	}
+
+	/**
+	 * I-frames are ready for the station: if its poll is due within {@code minInterval} anyway,
+	 * takes it out early, so it goes out on them rather than as an RR+P of its own just after.
+	 * Never sooner than {@code minInterval} after the last poll, or a busy room would poll
+	 * each station once per broadcast.
+	 *
+	 * @return {@code true} if the station should be polled now.
+	 */
+	boolean pollEarly(Connection station)
+	{
+		if (station.state != Connection.State.READY || station.pollTimer == null || !station.pollTimer.isScheduled()
+				|| !pollEarly(station, station.pollTimer.getDeadline()))
+			return false;
+
+		timers.cancel(station.pollTimer);
+		return true;
+	}
+
+	/**
+	 * The same rule, for engines that time each station's poll themselves.
+	 *
+	 * @param due when the station's next poll is due, in milliseconds.
+	 */
+	boolean pollEarly(Connection station, long due)
+	{
+		long now = System.currentTimeMillis();
+		return due <= now + minInterval && now - station.polledAt >= minInterval;
+	}
+
+	/**
+	 * The station answered its poll, or sent more after it: counts the poll and works out
+	 * how long to wait before the next one.
+	 *
+	 * @param productive {@code true} if it sent I-frames.
+	 * @return the delay, in milliseconds.
+	 */
+	long backOff(Connection station, boolean productive)
+	{
+		if (station.state == Connection.State.POLLED)
+		{
+			station.state = Connection.State.READY;
+			station.missedPolls = 0;
+			if (productive)
+				productivePolls.incrementAndGet();
+		}
+
+		if (productive && !station.isBalanced())
+		{
+			// It may have more to say.
+			station.pollInterval = minInterval;
+			return 0;
+		}
+
+		if (station.isWindowFilling())
+		{
+			station.pollInterval = minInterval;
+			return minInterval;
+		}
+
+		long delay = Math.max(minInterval, station.pollInterval);
+		station.pollInterval = (int) Math.min(delay * 2, maxInterval);
+
+		return station.isIdle()? delay : Math.min(delay, acknowledgementDelay(station));
+	}
+
+	/**
+	 * @return how long acknowledgements can wait without the oldest frame being sent again, in milliseconds.
+	 */
+	private long acknowledgementDelay(Connection station)
+	{
+		return Math.max(minInterval, station.getTimeout() / 2);
+	}
+
+	long getPolls()
+	{
+		return polls.get();
+	}
+
+	long getProductivePolls()
+	{
+		return productivePolls.get();
+	}
+
+	/**
+	 * @return the share of polls answered with I-frames, 0 to 1.
+	 */
+	double getEfficiency()
+	{
+		long total = polls.get();
+		return (total == 0)? 0 : (double) productivePolls.get() / total;
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("%d polls, %d answered with I-frames (%.1f%%)", getPolls(), getProductivePolls(), 100 * getEfficiency());
+	}
+}
@@ -0,0 +1,172 @@
+package chat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Segmentation of messages too long for one info field, and their reassembly.
+ *
+ * A long message goes out as a chain of I-frames through the sliding window, so it
+ * streams at window speed like any other traffic. HDLC I-frames have no room for a
+ * "more to come" bit, so on links that segment, every I-frame's info field starts with
+ * a one-byte header, like the M bit of X.25: {@link #MORE} if the next I-frame
+ * continues the message, {@link #LAST} if this one ends it.
+ * Segments end on character boundaries, so each one is valid UTF-8 on its own.
+ *
+ * Both ends must agree on it: the primary offers {@code seg} in its SNRM and the
+ * secondary repeats it in its UA if it reassembles too.
+ *
+ * An instance reassembles the messages of one connection. Not thread-safe.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class Segmentation
+{
+	/**
+	 * Token naming segmentation in SNRM and UA info fields.
+	 */
+	static final String NAME = "seg";
+	/**
+	 * Segment headers. Printable, so text-encoded frames stay readable.
+	 */
+	static final char MORE = '+', LAST = '.';
+	/**
+	 * Most message bytes in one segment, so a segment and its header fit in one info field.
+	 */
+	static final int MAX_SEGMENT_LENGTH = NetFrame.MAX_INFO_FIELD_SIZE - 1;
+	/**
+	 * Longest message reassembled, in bytes. A longer one is dropped.
+	 */
+	static final int MAX_MESSAGE_LENGTH = 1024 * 1024;
+
+	/**
+	 * Message bytes received so far, the segment headers left out.
+	 */
+	private byte[] pending = new byte[NetFrame.MAX_INFO_FIELD_SIZE];
+	private int pendingLength = 0;
+	/**
+	 * The message in progress ran over {@link #MAX_MESSAGE_LENGTH}; the rest of it is ignored.
+	 */
+	private boolean overflow = false;
+
+	/**
+	 * @param offer an SNRM or UA info field, {@code null} if there was none.
+	 * @return {@code true} if it names segmentation.
+	 */
+	static boolean fromOffer(String offer)
+	{
+		if (offer != null)
+		{
+			for (String option : offer.split(","))
+			{
+				if (NAME.equals(option.trim()))
+					return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Splits a message into the info fields of its I-frames, headers included.
+	 * A message that fits in one is a single {@link #LAST} segment.
+	 */
+	static String[] split(String message)
+	{
+		byte[] encoded = message.getBytes(StandardCharsets.UTF_8);
+
+		if (encoded.length <= MAX_SEGMENT_LENGTH)
+			return new String[] {LAST + message};
+
+		ArrayList<String> segments = new ArrayList<String>(encoded.length / MAX_SEGMENT_LENGTH + 1);
+		int offset = 0;
+
+		while (offset < encoded.length)
+		{
+			int end = Math.min(offset + MAX_SEGMENT_LENGTH, encoded.length);
+
+			// Back off to the start of a character, never past the segment start.
+			while (end < encoded.length && end > offset + 1 && (encoded[end] & 0xC0) == 0x80)
+				end--;
+
+			char header = (end == encoded.length)? LAST : MORE;
+			segments.add(header + new String(encoded, offset, end - offset, StandardCharsets.UTF_8));
+			offset = end;
+		}
+
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	/**
+	 * Adds a delivered I-frame's info field, read in place from a receive buffer.
+	 * A message in a single segment is decoded straight from the buffer; the segments of
+	 * a longer one are copied once, into the reassembly buffer, and decoded together.
+	 *
+	 * @param offset absolute index of the segment header.
+	 * @param length of the info field, header included.
+	 * @return the whole message once its last segment is in, {@code null} while more are expected.
+	 */
+	String add(ByteBuffer buffer, int offset, int length)
+	{
+		if (length == 0)
+			return (pendingLength == 0)? "" : finish();
+
+		boolean more = buffer.get(offset) == MORE;
+
+		if (!more && pendingLength == 0 && !overflow)
+			return new String(buffer.array(), buffer.arrayOffset() + offset + 1, length - 1, StandardCharsets.UTF_8);
+
+		append(buffer, offset + 1, length - 1);
+		return more? null : finish();
+	}
+
+	/**
+	 * Adds the info field of an I-frame that was held back, e.g. by Selective Repeat.
+	 *
+	 * @see #add(ByteBuffer, int, int)
+	 */
+	String add(String info)
+	{
+		byte[] encoded = (info == null)? new byte[0] : info.getBytes(StandardCharsets.UTF_8);
+		return add(ByteBuffer.wrap(encoded), 0, encoded.length);
+	}
+
+	private void append(ByteBuffer buffer, int offset, int length)
+	{
+		if (overflow || pendingLength + length > MAX_MESSAGE_LENGTH)
+		{
+			overflow = true;
+			return;
+		}
+
+		if (pendingLength + length > pending.length)
+		{
+			byte[] larger = new byte[Math.max(pending.length * 2, pendingLength + length)];
+			System.arraycopy(pending, 0, larger, 0, pendingLength);
+			pending = larger;
+		}
+
+		ByteBuffer source = buffer.duplicate();
+		source.limit(offset + length).position(offset);
+		source.get(pending, pendingLength, length);
+		pendingLength += length;
+	}
+
+	/**
+	 * @return the reassembled message, {@code null} if it was too long.
+	 */
+	private String finish()
+	{
+		String message = overflow? null : new String(pending, 0, pendingLength, StandardCharsets.UTF_8);
+
+		if (overflow)
+			System.err.println("Dropped a message over " + MAX_MESSAGE_LENGTH + " bytes.");
+
+		pendingLength = 0;
+		overflow = false;
+		return message;
+	}
+}
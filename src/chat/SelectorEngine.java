@@ -0,0 +1,456 @@
+package chat;
+
+import chat.NetFrame;
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * Single-threaded, non-blocking primary station.
+ * Multiplexes accept, handshake, poll and broadcast for every station over one {@code Selector},
+ * so a slow or silent station never holds up the others.
+ * Polls, poll responses and retransmissions are timed on one {@code TimingWheel},
+ * which paces the selector.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class SelectorEngine
+{
+	/**
+	 * Minimum delay, in milliseconds, between a station's final frame and its next poll.
+	 */
+	static final int DEFAULT_POLL_INTERVAL = 20;
+
+	/**
+	 * The station's oldest outstanding I-frame has gone unacknowledged for T1.
+	 */
+	private final class RetransmitTimer extends TimingWheel.Timer
+	{
+		private final Connection client;
+
+		RetransmitTimer(Connection client)
+		{
+			this.client = client;
+		}
+
+		@Override
+		void expired()
+		{
+			try
+			{
+				client.checkTimeout();
+				armRetransmission(client);
+
+				// Ask for the acknowledgement of what went out again.
+				if (client.state == Connection.State.READY)
+					scheduler.schedule(client, 0);
+			}
+			catch (IOException e)
+			{
+				terminate(client);
+			}
+		}
+	}
+
+	private Selector selector;
+	private ServerSocketChannel serverChannel;
+	private StationRegistry clients;
+	/**
+	 * Stations waiting for their next poll, idle ones backing off.
+	 * Its timing wheel also holds the retransmission timers.
+	 */
+	private PollScheduler scheduler;
+	private SlidingWindow.Mode arqMode = SlidingWindow.Mode.GO_BACK_N;
+	private int windowSize = 0;
+	private OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP;
+	private boolean balanced = false;
+	private boolean clientsConnected = false;
+
+	/**
+	 * @param pollInterval minimum delay, in milliseconds, between a station's final frame and its next poll.
+	 * @param maxPollInterval most an idle station waits for a poll, in milliseconds.
+	 */
+	SelectorEngine(int port, int pollInterval, int maxPollInterval) throws IOException
+	{
+		this.clients = new StationRegistry();
+		this.scheduler = new PollScheduler(pollInterval, maxPollInterval);
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+
+		serverChannel.configureBlocking(false);
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.socket().bind(new InetSocketAddress(port));
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * Main server loop. Returns once every client that ever connected has disconnected.
+	 */
+	void run() throws IOException
+	{
+		while (!(clientsConnected && clients.isEmpty()))
+		{
+			long delay = scheduler.nextDelay();
+
+			if (delay < 0)
+				selector.select();
+			else if (delay == 0)
+				selector.selectNow();
+			else
+				selector.select(delay);
+
+			Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+			while (keys.hasNext())
+			{
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				if (!key.isValid())
+					continue;
+
+				if (key.isAcceptable())
+				{
+					accept();
+					continue;
+				}
+
+				Connection client = (Connection) key.attachment();
+				try
+				{
+					if (key.isWritable())
+						client.flush();
+
+					if (key.isReadable())
+						receive(client);
+
+					armRetransmission(client);
+				}
+				catch (IOException e)
+				{
+					System.err.println(client.getAddress() + " dropped: " + e.getMessage());
+					terminate(client);
+				}
+			}
+
+			pollStations();
+			sendMessages();
+		}
+
+		System.err.println("All clients have disconnected. Terminating server.");
+		System.err.println("Poll efficiency: " + scheduler);
+		close();
+	}
+
+	/**
+	 * Accepts every pending connection and opens the link with SNRM, or SABM.
+	 */
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+
+		while ((channel = serverChannel.accept()) != null)
+		{
+			Connection client = new Connection(channel);
+			client.setSelectionKey(channel.register(selector, SelectionKey.OP_READ, client));
+			client.setOverflow(overflow);
+
+			try
+			{
+				// Set normal response mode, or asynchronous balanced mode
+				client.sendSetMode(arqMode, windowSize, balanced);
+				scheduler.handshaking(client);
+			}
+			catch (IOException e)
+			{
+				client.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads from a station and handles every complete frame it sent.
+	 */
+	private void receive(Connection client) throws IOException
+	{
+		if (client.fill() < 0)
+			throw new EOFException("closed the connection.");
+
+		FrameView frame;
+		while (client.state != null && (frame = client.nextView()) != null)
+		{
+			handle(client, frame);
+		}
+	}
+
+	private void handle(Connection client, FrameView response) throws IOException
+	{
+		switch (client.state)
+		{
+			case HANDSHAKE:
+				if (response.getFrameType() == Types.UFrame && response.getCC() == Commands.UA)
+				{
+					// The UA names the wire format picked and repeats the options the station takes up.
+					String accepted = response.getInfoLength() > 0? response.getInfo() : null;
+					client.setWireFormat(WireFormat.choose(accepted));
+					client.setFrameCheck(FrameCheck.fromOffer(accepted));
+					client.setSegmentation(Segmentation.fromOffer(accepted));
+					client.state = Connection.State.READY;
+					clients.add(client);
+					clientsConnected = true;
+					scheduler.schedule(client, 0);
+
+					System.out.println("Client added " + client.getAddress());
+				}
+				else
+				{
+					System.err.println("ERROR : Did not  UA frame from " + client.getAddress());
+				}
+				return;
+
+			default:
+				break;
+		}
+
+		boolean deliver = client.receive(response);
+
+		switch (response.getFrameType())
+		{
+			case IFrame:
+				if (deliver)
+				{
+					broadcast(client.reassemble(response));
+
+					// Frames held back waiting for this one
+					NetFrame late;
+					while ((late = client.nextReleased()) != null)
+						broadcast(client.reassemble(late));
+				}
+
+				// The station may have more to say, poll it again right away.
+				if (response.isFinal())
+					scheduler.answered(client, true);
+				break;
+
+			case SFrame:
+				if (response.isFinal())
+					scheduler.answered(client, false);
+				break;
+
+			case UFrame:
+				switch (response.getCC())
+				{
+					case DISC:
+						//Client requesting clean disconnect
+						System.err.println(client.getAddress() + " requesting disconnect.");
+						NetFrame disc = new NetFrame(client.getStation(), Types.UFrame, Commands.DISC);
+						disc.setPollFinal(HDLCFrame.Final);
+						client.send(disc);
+						client.flush();
+						terminate(client);
+						break;
+
+					default:
+						break;
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Queues a received message for every client.
+	 * It is encoded once; each client's copy only gets its own address and sequence numbers.
+	 *
+	 * @param info {@code null} while the message is still being reassembled.
+	 */
+	private void broadcast(String info)
+	{
+		if (info == null)
+			return;
+
+		System.out.println(info);
+		Broadcast msg = new Broadcast(info);
+
+		for (Connection destinationClient : clients.snapshot())
+		{
+			destinationClient.enqeue(msg);
+		}
+	}
+
+	/**
+	 * Selects the retransmission strategy of connections accepted from now on.
+	 */
+	void setArqMode(SlidingWindow.Mode arqMode)
+	{
+		this.arqMode = arqMode;
+	}
+
+	/**
+	 * Sets the send window of connections accepted from now on.
+	 *
+	 * @param windowSize 0 for the largest the mode allows in modulo 8, larger windows use extended mode.
+	 */
+	void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Sets what becomes of stations accepted from now on once they fall too far behind.
+	 */
+	void setOverflow(OutboundQueue.Overflow overflow)
+	{
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Opens the links of stations accepted from now on in asynchronous balanced mode (SABM),
+	 * where they send without waiting to be polled, rather than normal response mode.
+	 */
+	void setBalanced(boolean balanced)
+	{
+		this.balanced = balanced;
+	}
+
+	/**
+	 * Polls every station whose poll is due, on the last of its waiting messages or with RR+P,
+	 * with RNR+P if it is too far behind to take more messages from. Drops those that stopped answering.
+	 */
+	private void pollStations()
+	{
+		Connection client;
+
+		while ((client = scheduler.nextDead()) != null)
+		{
+			System.err.println(client.getAddress() + " dropped: "
+					+ (client.state == Connection.State.HANDSHAKE? "never answered the link setup." : "stopped answering polls."));
+			terminate(client);
+		}
+
+		while ((client = scheduler.nextDue()) != null)
+		{
+			if (client.state != Connection.State.READY)
+				continue;
+
+			try
+			{
+				if (client.poll() > 0)
+					armRetransmission(client);
+				scheduler.polled(client);
+			}
+			catch (IOException e)
+			{
+				terminate(client);
+			}
+		}
+	}
+
+	/**
+	 * Send each connected client's queued messages, as many as its window has room for.
+	 * A station whose poll is due shortly is polled with them instead. Balanced stations
+	 * get an RR for what they sent unless a frame has already acknowledged it.
+	 */
+	private void sendMessages()
+	{
+		for (Connection connection : clients)
+		{
+			try
+			{
+				if (connection.isOverrun())
+				{
+					evict(connection);
+					continue;
+				}
+
+				if (connection.hasMessages() && scheduler.pollEarly(connection))
+				{
+					if (connection.poll() > 0)
+						armRetransmission(connection);
+					scheduler.polled(connection);
+				}
+				else if (connection.sendQueued() > 0)
+				{
+					scheduler.sent(connection);
+					armRetransmission(connection);
+				}
+
+				// Nothing may come to ask for it.
+				if (connection.isBalanced())
+					connection.acknowledge();
+			}
+			catch (IOException e)
+			{
+				terminate(connection);
+			}
+		}
+	}
+
+	/**
+	 * Arms, rearms or disarms the station's T1 for its oldest outstanding I-frame.
+	 */
+	private void armRetransmission(Connection client)
+	{
+		if (client.state == null)
+			return;
+
+		if (client.retransmitTimer == null)
+			client.retransmitTimer = new RetransmitTimer(client);
+
+		long delay = client.retransmitDelay();
+
+		if (delay < 0)
+			scheduler.timers().cancel(client.retransmitTimer);
+		else
+			scheduler.timers().schedule(client.retransmitTimer, delay);
+	}
+
+	/**
+	 * Disconnects a station that fell too far behind.
+	 */
+	private void evict(Connection client) throws IOException
+	{
+		System.err.println(client.getAddress() + " evicted: too far behind.");
+		NetFrame disc = new NetFrame(client.getStation(), Types.UFrame, Commands.DISC);
+		disc.setPollFinal(HDLCFrame.Poll);
+		client.send(disc);
+		client.flush();
+		terminate(client);
+	}
+
+	/**
+	 * Connections die here.
+	 */
+	private void terminate(Connection deadMan)
+	{
+		deadMan.state = null;
+		clients.remove(deadMan);
+		scheduler.remove(deadMan);
+		if (deadMan.retransmitTimer != null)
+			scheduler.timers().cancel(deadMan.retransmitTimer);
+		deadMan.close();
+	}
+
+	private void close()
+	{
+		for (Connection connection : clients)
+		{
+			connection.close();
+		}
+
+		try
+		{
+			serverChannel.close();
+			selector.close();
+		}
+		catch (IOException e){}
+	}
+}
@@ -1,80 +1,619 @@
 package chat;
 
+import java.io.IOException;
+import java.util.LinkedList;
+
 import chat.NetFrame.*;
 import chat.NetFrame.HDLCFrame.*;
 
+/**
+ * Go-Back-N or Selective Repeat sliding window for one {@code Connection}.
+ *
+ * Keeps up to {@code windowSize()} I-frames in flight and slides on every N(R) received.
+ * In Go-Back-N mode it goes back to the oldest unacknowledged frame on REJ or when {@code timeout}
+ * expires; in Selective Repeat mode it resends only the frame named by an SREJ, or the oldest one
+ * on timeout, and buffers out-of-sequence I-frames until the gaps are filled.
+ * I-frames that do not fit in the window wait in order until acknowledgements open it up.
+ * S- and U-frames are never windowed.
+ */
 class SlidingWindow
 {
-	private static final int MAX_WINDOW_LENGTH = 8;
+	/**
+	 * Retransmission strategies. The primary picks one per connection and names it in its SNRM.
+	 */
+	static enum Mode
+	{
+		/**
+		 * Discard out-of-sequence I-frames, REJ and resend everything from N(R).
+		 */
+		GO_BACK_N("gbn"),
+		/**
+		 * Buffer out-of-sequence I-frames, SREJ each gap and resend only what was rejected.
+		 */
+		SELECTIVE_REPEAT("srej");
+
+		private final String name;
+
+		private Mode(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * @param offer an SNRM info field, {@code null} if there was none.
+		 * @return the mode named in it, Go-Back-N if none is.
+		 */
+		static Mode fromOffer(String offer)
+		{
+			if (offer != null)
+			{
+				for (String option : offer.split(","))
+				{
+					if (SELECTIVE_REPEAT.name.equals(option.trim()))
+						return SELECTIVE_REPEAT;
+				}
+			}
+
+			return GO_BACK_N;
+		}
+
+		static Mode forName(String name)
+		{
+			return SELECTIVE_REPEAT.name.equals(name)? SELECTIVE_REPEAT : GO_BACK_N;
+		}
+
+		@Override
+		public String toString()
+		{
+			return name;
+		}
+	}
+
+	/**
+	 * Sequence space of normal (SNRM) and extended (SNRME) mode.
+	 */
+	static final int MAX_WINDOW_LENGTH = 8, MAX_EXTENDED_WINDOW_LENGTH = 128;
+	/**
+	 * Default retransmission timeout (T1), in milliseconds.
+	 */
+	static final long DEFAULT_TIMEOUT = 1000;
+
+	/**
+	 * V(S), the N(S) of the next new I-frame, and V(R), the N(S) expected next from the peer.
+	 */
 	private int NUMBER_SEND_SEQUENCE, NUMBER_RECEIVE_SEQUENCE;
-	private HDLCFrame.Types previousFrameType;
-	
+
     private NetFrame[] slidingWindow;
     private Connection connection;
-        
+    /**
+     * I-frames waiting for room in the window.
+     */
+    private LinkedList<NetFrame> backlog;
+    /**
+     * S- and U-frames waiting for the next {@code run()}.
+     */
+    private LinkedList<NetFrame> control;
+    /**
+     * Selective Repeat receive buffer: out-of-sequence I-frames indexed by N(S).
+     */
+    private NetFrame[] reorder;
+    /**
+     * Buffered I-frames released in order by the frame that filled their gap.
+     */
+    private LinkedList<NetFrame> released;
+    /**
+     * Selective Repeat gaps, indexed by N(S): {@code srejPending} still has to be sent,
+     * {@code srejSent} already was.
+     */
+    private boolean[] srejPending, srejSent;
+    private Mode mode = Mode.GO_BACK_N;
+
+	/**
+	 * {@code NetFrame} index for sliding slidingWindow. Left is the oldest unacknowledged frame,
+	 * Middle the next frame to send.
+	 */
+	private int L = 0, M = 0;
+	/**
+	 * Sequence numbers wrap modulo this.
+	 */
+	private int modulus = MAX_WINDOW_LENGTH;
+	/**
+	 * Requested send window, 0 for the largest the mode allows.
+	 */
+	private int maxOutstanding = 0;
+
+	/**
+	 * The last out-of-sequence I-frame has been answered with REJ; ignore the rest until the
+	 * expected one arrives.
+	 */
+	private boolean rejected = false;
 	/**
-	 * {@code NetFrame} index for sliding slidingWindow. Left, Right and Middle(?)
+	 * The outstanding REJ answered a frame failing its FCS, which may have been an S-frame with
+	 * no retransmission to come. It also ends when a poll or final frame acknowledging V(R)
+	 * goes out: the peer's retransmissions come ahead of its answer to a poll, and the primary
+	 * polls only once it has the final frame and with it any REJ. A REJ for a sequence error
+	 * does not, or the duplicates of the peer's go-back would each send it back again.
 	 */
-	private int L = 0, R = 8, M = 0;
-	
+	private boolean rejectedBlind = false;
+	/**
+	 * An out-of-sequence I-frame has been received and the next RR must go out as REJ.
+	 */
+	private boolean rejectPending = false;
+	/**
+	 * The peer sent RNR. No new I-frames until it sends RR.
+	 */
+	private boolean remoteBusy = false;
+	/**
+	 * V(R) has moved since the last I- or S-frame went out carrying it.
+	 */
+	private boolean acknowledgementOwed = false;
+
+	private long timeout = DEFAULT_TIMEOUT;
+	/**
+	 * When the oldest outstanding frame was (re)sent, in milliseconds.
+	 */
+	private long timerStart;
+	private int retransmissions = 0;
+
 	/**
 	 * Constructor for the sliding SlidingWindow. Consists of an empty {@code LinkedList<Frame>} of HDLC frames of length {@code MAX_WINDOW_LENGTH}.
 	 */
 	public SlidingWindow (Connection connect)
 	{
         this.connection = connect;
-		this.slidingWindow = new NetFrame[MAX_WINDOW_LENGTH];
+		this.slidingWindow = new NetFrame[MAX_EXTENDED_WINDOW_LENGTH];
+		this.backlog = new LinkedList<NetFrame>();
+		this.control = new LinkedList<NetFrame>();
+		this.reorder = new NetFrame[MAX_EXTENDED_WINDOW_LENGTH];
+		this.released = new LinkedList<NetFrame>();
+		this.srejPending = new boolean[MAX_EXTENDED_WINDOW_LENGTH];
+		this.srejSent = new boolean[MAX_EXTENDED_WINDOW_LENGTH];
 		NUMBER_SEND_SEQUENCE = 0;
 		NUMBER_RECEIVE_SEQUENCE = 0;
 	}
-	
+
+	/**
+	 * Queues a frame for the next {@code run()}.
+	 *
+	 * @return {@code false} if the frame is an I-frame that has to wait for the window to open.
+	 */
 	public boolean add(NetFrame frame)
-			//throws InterruptedException
 	{
-		if (previousFrameType == Types.IFrame && frame.getFrameType() != Types.IFrame)
-        {
-			// No longer sending I-Frames. Reset.
-			NUMBER_SEND_SEQUENCE = 0;
-        }
-		else if (previousFrameType == Types.IFrame && frame.getFrameType() == Types.IFrame)
-        {
-			NUMBER_SEND_SEQUENCE = (NUMBER_SEND_SEQUENCE + 1) % 8;
-        	frame.setNSS(NUMBER_SEND_SEQUENCE);
-        }
-		
-		if (frame.getFrameType() == Types.IFrame || frame.getFrameType() == Types.SFrame)
-        {
-			if (frame.getFrameType() == Types.IFrame)
-	        	frame.setNSS(NUMBER_SEND_SEQUENCE);
-	        	
-			frame.setNRS(NUMBER_RECEIVE_SEQUENCE);
-        }
-        
-		//Wait for slidingWindow to catch up before sending message
-//        while (M == R)
-//        {
-//            System.out.print("Sliding..");
-//            Thread.sleep(500);
-//        }
-
-        previousFrameType = frame.getFrameType();
-        slidingWindow[M] = frame;
-        M = (M+1) % MAX_WINDOW_LENGTH; // increment for next frame
-        
-        return true;
+		if (frame.getFrameType() != Types.IFrame)
+		{
+			control.add(frame);
+			return true;
+		}
+
+		backlog.add(frame);
+		return !remoteBusy && outstanding() + backlog.size() <= windowSize();
 	}
-	
+
 	/**
-	 * 
+	 * Sends every queued S- and U-frame, then as many waiting I-frames as the window allows.
 	 */
-    public void run()
+    public void run() throws IOException
+    {
+    	NetFrame frame;
+
+    	while ((frame = control.poll()) != null)
+    	{
+    		if (frame.getFrameType() == Types.SFrame)
+    		{
+    			// Gaps are reported ahead of the frame that carries P/F.
+    			sendSelectiveRejects(frame);
+
+    			if (rejectPending && frame.getCC() == Commands.RR)
+    			{
+    				// Report the sequence error in place of the acknowledgement.
+    				NetFrame rej = new NetFrame(frame.getStation(), Types.SFrame, Commands.REJ);
+    				if (frame.getPollFinal() != null)
+    					rej.setPollFinal(frame.getPollFinal());
+    				frame = rej;
+    			}
+
+    			if (frame.getCC() == Commands.REJ)
+    				rejectPending = false;
+    			else if (frame.isPoll() && rejectedBlind)
+    				rejected = false;
+
+    			if (isExtended())
+    				frame.setExtended();
+    			frame.setNRS(NUMBER_RECEIVE_SEQUENCE);
+    			acknowledgementOwed = false;
+    		}
+
+    		connection.sendSRS(frame);
+    	}
+
+    	while (!remoteBusy && outstanding() < windowSize() && (frame = backlog.poll()) != null)
+    	{
+    		if (outstanding() == 0)
+    			timerStart = System.currentTimeMillis();
+
+    		if (isExtended())
+    			frame.setExtended();
+    		frame.setNSS(NUMBER_SEND_SEQUENCE);
+    		slidingWindow[M] = frame;
+    		M = (M + 1) % modulus;
+    		NUMBER_SEND_SEQUENCE = M;
+
+    		sendPendingRejects(frame);
+    		transmit(frame);
+    	}
+    }
+
+    /**
+     * Runs an incoming frame through the window: slides on its N(R),
+     * goes back on REJ and checks the sequence of I-frames.
+     *
+     * @return {@code true} if the frame is an in-sequence I-frame to deliver.
+     */
+    boolean receive(FrameView frame) throws IOException
+    {
+    	Types type = frame.getFrameType();
+
+    	if (type == Types.UFrame)
+    		return false;
+
+    	if (type == Types.SFrame)
+    	{
+    		switch (frame.getCC())
+    		{
+    			case RNR:
+    				acknowledge(frame.getNRS());
+    				remoteBusy = true;
+    				break;
+
+    			case REJ:
+    				acknowledge(frame.getNRS());
+    				remoteBusy = false;
+    				retransmit();
+    				break;
+
+    			case SREJ:
+    				// N(R) names the missing frame, it acknowledges nothing.
+    				retransmit(frame.getNRS());
+    				break;
+
+    			default:
+    				acknowledge(frame.getNRS());
+    				remoteBusy = false;
+    				break;
+    		}
+
+    		run();
+    		return false;
+    	}
+
+    	acknowledge(frame.getNRS());
+
+    	int offset = (frame.getNSS() - NUMBER_RECEIVE_SEQUENCE + modulus) % modulus;
+
+    	if (offset != 0)
+    	{
+    		if (mode == Mode.SELECTIVE_REPEAT)
+    		{
+    			if (offset < modulus / 2)
+    				hold(frame, offset);
+    		}
+    		else if (!rejected)
+    		{
+    			rejected = true;
+    			rejectedBlind = false;
+    			rejectPending = true;
+    		}
+    		return false;
+    	}
+
+    	advance();
+    	rejected = false;
+    	rejectPending = false;
+
+    	// Release whatever the frame was the missing piece for.
+    	while (reorder[NUMBER_RECEIVE_SEQUENCE] != null)
+    	{
+    		released.add(reorder[NUMBER_RECEIVE_SEQUENCE]);
+    		reorder[NUMBER_RECEIVE_SEQUENCE] = null;
+    		advance();
+    	}
+
+    	run();
+    	return true;
+    }
+
+    /**
+     * Answers a frame that failed its FCS with REJ right away under Go-Back-N. Its N(S) is unknown,
+     * so REJ from V(R) is the only recovery it can ask for. Selective Repeat drops the frame instead:
+     * the gap it leaves is SREJ'd once a later frame shows its N(S), and a lost poll response or
+     * the last frame of a burst falls to the response timer or T1, rather than sending the peer
+     * back over every frame since V(R).
+     * Only one REJ is outstanding at a time: until the frame it asks for arrives, another
+     * would only send the peer back over frames it is already resending, and on a noisy
+     * link each of those resends fails often enough to trigger yet another.
+     *
+     * @param poll {@code true} on the primary, whose REJ also polls the station for the
+     * response the corrupt frame may have been, with RR if a REJ is already outstanding;
+     * a secondary's REJ is final.
+     */
+    void reject(boolean poll) throws IOException
+    {
+    	if (mode == Mode.SELECTIVE_REPEAT || (rejected && !poll))
+    		return;
+
+    	NetFrame rej = new NetFrame(connection.getStation(), Types.SFrame, rejected? Commands.RR : Commands.REJ);
+    	rej.setPollFinal(poll? HDLCFrame.Poll : HDLCFrame.Final);
+
+    	rejectPending = false;
+    	control.add(rej);
+    	run();
+    	// Set after, the RR+P standing in for a second REJ does not end the first.
+    	if (!rejected)
+    		rejectedBlind = true;
+    	rejected = true;
+    }
+
+    /**
+     * Buffers an I-frame that arrived ahead of V(R) and marks every gap before it for SREJ.
+     *
+     * @param offset of the frame's N(S) from V(R), within the window.
+     */
+    private void hold(FrameView frame, int offset) throws IOException
+    {
+    	int ns = frame.getNSS();
+
+    	if (reorder[ns] == null)
+    		reorder[ns] = frame.toNetFrame();
+
+    	for (int i = 0; i < offset; i++)
+    	{
+    		int missing = (NUMBER_RECEIVE_SEQUENCE + i) % modulus;
+
+    		if (reorder[missing] == null && !srejSent[missing])
+    			srejPending[missing] = true;
+    	}
+    }
+
+    /**
+     * Moves V(R) past one delivered frame.
+     */
+    private void advance()
+    {
+    	srejPending[NUMBER_RECEIVE_SEQUENCE] = false;
+    	srejSent[NUMBER_RECEIVE_SEQUENCE] = false;
+    	NUMBER_RECEIVE_SEQUENCE = (NUMBER_RECEIVE_SEQUENCE + 1) % modulus;
+    	acknowledgementOwed = true;
+    }
+
+    /**
+     * Sends the gaps and the sequence error waiting for an RR to go out on ahead of an I-frame
+     * instead, e.g. the one carrying P or F: its N(R) alone would leave the peer to T1.
+     */
+    private void sendPendingRejects(NetFrame carrier) throws IOException
+    {
+    	sendSelectiveRejects(carrier);
+
+    	if (!rejectPending)
+    		return;
+
+    	NetFrame rej = new NetFrame(carrier.getStation(), Types.SFrame, Commands.REJ);
+    	if (isExtended())
+    		rej.setExtended();
+    	rej.setNRS(NUMBER_RECEIVE_SEQUENCE);
+    	rejectPending = false;
+    	connection.sendSRS(rej);
+    }
+
+    /**
+     * Sends one SREJ per gap waiting to be reported, lowest N(S) first.
+     *
+     * @param carrier the frame the SREJs are going out ahead of.
+     */
+    private void sendSelectiveRejects(NetFrame carrier) throws IOException
+    {
+    	for (int i = 0; i < modulus / 2; i++)
+    	{
+    		int missing = (NUMBER_RECEIVE_SEQUENCE + i) % modulus;
+
+    		if (!srejPending[missing])
+    			continue;
+
+    		NetFrame srej = new NetFrame(carrier.getStation(), Types.SFrame, Commands.SREJ);
+    		if (isExtended())
+    			srej.setExtended();
+    		srej.setNRS(missing);
+    		connection.sendSRS(srej);
+
+    		srejPending[missing] = false;
+    		srejSent[missing] = true;
+    	}
+    }
+
+    /**
+     * @return the next buffered I-frame released in order by {@code receive()}, {@code null} if none.
+     */
+    NetFrame nextReleased()
+    {
+    	return released.poll();
+    }
+
+    /**
+     * Goes back N if the oldest outstanding frame has not been acknowledged within {@code timeout}.
+     */
+    void checkTimeout() throws IOException
+    {
+    	if (outstanding() > 0 && System.currentTimeMillis() - timerStart >= timeout)
+    	{
+    		if (mode == Mode.SELECTIVE_REPEAT)
+    			retransmit(L);
+    		else
+    			retransmit();
+    	}
+    }
+
+    /**
+     * @return milliseconds until {@link #checkTimeout()} goes back, {@code -1} if no frame is outstanding.
+     */
+    long retransmitDelay()
+    {
+    	if (outstanding() == 0)
+    		return -1;
+
+    	return Math.max(0, timerStart + timeout - System.currentTimeMillis());
+    }
+
+    /**
+     * Frees every slot acknowledged by N(R), i.e. up to N(R)-1.
+     * Acknowledgements outside the window are ignored.
+     */
+    private void acknowledge(int nr)
+    {
+    	if ((nr - L + modulus) % modulus > outstanding())
+    		return;
+
+    	if (nr != L)
+    		timerStart = System.currentTimeMillis();
+
+    	while (L != nr)
+    	{
+    		slidingWindow[L] = null;
+    		L = (L + 1) % modulus;
+    	}
+    }
+
+    /**
+     * Resends every outstanding frame, oldest first.
+     */
+    private void retransmit() throws IOException
+    {
+    	if (outstanding() > 0)
+    		timerStart = System.currentTimeMillis();
+
+    	for (int i = L; i != M; i = (i + 1) % modulus)
+    	{
+    		retransmissions++;
+    		transmit(slidingWindow[i]);
+    	}
+    }
+
+    /**
+     * Resends a single outstanding frame.
+     *
+     * @param ns N(S) of the frame, ignored if it is not outstanding.
+     */
+    private void retransmit(int ns) throws IOException
+    {
+    	if ((ns - L + modulus) % modulus >= outstanding())
+    		return;
+
+    	if (ns == L)
+    		timerStart = System.currentTimeMillis();
+
+    	retransmissions++;
+    	transmit(slidingWindow[ns]);
+    }
+
+    /**
+     * Stamps the current V(R) on an I-frame and puts it on the wire.
+     */
+    private void transmit(NetFrame frame) throws IOException
+    {
+    	frame.setNRS(NUMBER_RECEIVE_SEQUENCE);
+    	acknowledgementOwed = false;
+    	if (frame.isPoll() && rejectedBlind)
+    		rejected = false;
+    	connection.sendSRS(frame);
+    }
+
+    /**
+     * @return {@code true} if frames have been received that no frame sent since acknowledges.
+     */
+    boolean isAcknowledgementOwed()
+    {
+    	return acknowledgementOwed;
+    }
+
+    /**
+     * @return the number of I-frames sent and not yet acknowledged.
+     */
+    int outstanding()
+    {
+    	return (M - L + modulus) % modulus;
+    }
+
+    /**
+     * @return the number of I-frames still waiting for room in the window.
+     */
+    int backlog()
+    {
+    	return backlog.size();
+    }
+
+    /**
+     * @return most I-frames allowed in flight in the current mode.
+     */
+    int windowSize()
+    {
+    	int max = maxWindowSize(mode, modulus);
+    	return (maxOutstanding > 0)? Math.min(maxOutstanding, max) : max;
+    }
+
+    /**
+     * @return most I-frames that can be in flight: one less than the sequence space with Go-Back-N,
+     * so a full window can be told apart from an empty one, and half of it with Selective Repeat,
+     * so a retransmission can never be mistaken for a new frame.
+     */
+    static int maxWindowSize(Mode mode, int modulus)
+    {
+    	return (mode == Mode.SELECTIVE_REPEAT)? modulus / 2 : modulus - 1;
+    }
+
+    /**
+     * Caps the send window. Values the sequence space cannot hold are clamped.
+     *
+     * @param size most I-frames in flight, 0 for the largest the mode allows.
+     */
+    void setWindowSize(int size)
+    {
+    	this.maxOutstanding = size;
+    }
+
+    /**
+     * Switches to modulo 128 sequence numbers and 16-bit control fields (SNRME),
+     * or back to modulo 8 (SNRM). Only valid while nothing is in flight.
+     */
+    void setExtended(boolean extended)
+    {
+    	this.modulus = extended? MAX_EXTENDED_WINDOW_LENGTH : MAX_WINDOW_LENGTH;
+    }
+
+    boolean isExtended()
+    {
+    	return modulus == MAX_EXTENDED_WINDOW_LENGTH;
+    }
+
+    Mode getMode()
+    {
+    	return mode;
+    }
+
+    void setMode(Mode mode)
+    {
+    	this.mode = mode;
+    }
+
+    int getRetransmissions()
+    {
+    	return retransmissions;
+    }
+
+    long getTimeout()
+    {
+    	return timeout;
+    }
+
+    void setTimeout(long timeout)
     {
-        if (M != L)
-        {
-            connection.sendSRS(slidingWindow[L]);
-            
-            this.L = (++L) % MAX_WINDOW_LENGTH;
-            this.R = (++R) % MAX_WINDOW_LENGTH;
-        }
+    	this.timeout = timeout;
     }
-}
\ No newline at end of file
+}
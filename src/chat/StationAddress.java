@@ -0,0 +1,152 @@
+package chat;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The 32-bit address field of a frame, held as a primitive int.
+ * Instances are interned: there is one per address, with its {@code InetAddress}
+ * and text encoding built once, so encoding or decoding a frame never resolves
+ * a host name or builds an address string.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class StationAddress
+{
+	/**
+	 * Most addresses kept, so a stream of garbage frames cannot grow the cache without bound.
+	 */
+	private static final int MAX_INTERNED = 4096;
+	/**
+	 * Interned addresses, by address field.
+	 */
+	private static final ConcurrentHashMap<Integer, StationAddress> BY_VALUE = new ConcurrentHashMap<Integer, StationAddress>();
+	/**
+	 * Interned addresses, by socket address. {@code Inet4Address} hashes to its address field,
+	 * so a lookup neither allocates nor resolves.
+	 */
+	private static final ConcurrentHashMap<InetAddress, StationAddress> BY_INET = new ConcurrentHashMap<InetAddress, StationAddress>();
+
+	private final int value;
+	private final InetAddress inetAddress;
+	/**
+	 * The address field in the text encoding: 32 '0'/'1' characters.
+	 */
+	private final String bits;
+
+	private StationAddress(int value)
+	{
+		this.value = value;
+		this.inetAddress = toInetAddress(value);
+
+		char[] chars = new char[32];
+		for (int i = 0; i < 32; i++)
+		{
+			chars[i] = ((value >>> (31 - i)) & 1) == 1? '1' : '0';
+		}
+		this.bits = new String(chars);
+	}
+
+	/**
+	 * @param value the address field, most significant octet first.
+	 */
+	static StationAddress of(int value)
+	{
+		StationAddress address = BY_VALUE.get(value);
+
+		if (address == null)
+		{
+			StationAddress created = new StationAddress(value);
+			if (BY_VALUE.size() >= MAX_INTERNED)
+				return created;
+
+			address = BY_VALUE.putIfAbsent(value, created);
+			if (address == null)
+				address = created;
+		}
+
+		return address;
+	}
+
+	/**
+	 * @param inetAddress of a station. IPv6 addresses keep their last 32 bits.
+	 */
+	static StationAddress of(InetAddress inetAddress)
+	{
+		StationAddress address = BY_INET.get(inetAddress);
+
+		if (address == null)
+		{
+			byte[] octets = inetAddress.getAddress();
+			int value = 0;
+			for (int i = octets.length - 4; i < octets.length; i++)
+			{
+				value = (value << 8) | (octets[i] & 0xFF);
+			}
+
+			address = of(value);
+			if (BY_INET.size() < MAX_INTERNED)
+				BY_INET.putIfAbsent(inetAddress, address);
+		}
+
+		return address;
+	}
+
+	/**
+	 * Parses the text encoding of an address field.
+	 *
+	 * @param text holding 32 '0'/'1' characters from {@code offset}.
+	 */
+	static StationAddress fromBits(CharSequence text, int offset)
+	{
+		int value = 0;
+
+		for (int i = offset; i < offset + 32; i++)
+		{
+			value = (value << 1) | (text.charAt(i) == '1'? 1 : 0);
+		}
+
+		return of(value);
+	}
+
+	private static InetAddress toInetAddress(int value)
+	{
+		try
+		{
+			return InetAddress.getByAddress(new byte[] {
+					(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value});
+		}
+		catch (UnknownHostException e)
+		{
+			// Only thrown for arrays of the wrong length.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	int toInt()
+	{
+		return value;
+	}
+
+	InetAddress getInetAddress()
+	{
+		return inetAddress;
+	}
+
+	/**
+	 * @return the address field in the text encoding.
+	 */
+	String getBits()
+	{
+		return bits;
+	}
+
+	@Override
+	public String toString()
+	{
+		return inetAddress.getHostAddress();
+	}
+}
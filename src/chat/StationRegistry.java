@@ -0,0 +1,121 @@
+package chat;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The connected stations of a primary, keyed by {@code Connection} id.
+ * Stations sharing an IP address (e.g. every client on the loopback) are kept apart.
+ *
+ * Adding and removing are O(1) and safe from any thread. Iterating never throws
+ * {@code ConcurrentModificationException}: a station may be removed, even by the loop
+ * iterating, and stations added meanwhile may or may not be seen.
+ * {@link #snapshot()} gives a fixed array for fan-out, rebuilt only after the registry changed.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class StationRegistry implements Iterable<Connection>
+{
+	private static final Connection[] EMPTY = new Connection[0];
+
+	/**
+	 * An array of the stations registered at a given {@code version}.
+	 */
+	private static final class Snapshot
+	{
+		final int version;
+		final Connection[] stations;
+
+		Snapshot(int version, Connection[] stations)
+		{
+			this.version = version;
+			this.stations = stations;
+		}
+	}
+
+	private final ConcurrentHashMap<Integer, Connection> stations = new ConcurrentHashMap<Integer, Connection>();
+	/**
+	 * Incremented after every change, so a stale snapshot is never reused.
+	 */
+	private final AtomicInteger version = new AtomicInteger();
+	private volatile Snapshot cached = new Snapshot(0, EMPTY);
+
+	/**
+	 * @return {@code false} if the station was already registered.
+	 */
+	boolean add(Connection station)
+	{
+		boolean added = stations.putIfAbsent(station.getId(), station) == null;
+
+		if (added)
+			version.incrementAndGet();
+
+		return added;
+	}
+
+	/**
+	 * @return {@code false} if the station was not registered, e.g. it was already terminated.
+	 */
+	boolean remove(Connection station)
+	{
+		boolean removed = stations.remove(station.getId(), station);
+
+		if (removed)
+			version.incrementAndGet();
+
+		return removed;
+	}
+
+	boolean contains(Connection station)
+	{
+		return stations.get(station.getId()) == station;
+	}
+
+	/**
+	 * @return the station with that connection id, {@code null} if it is not registered.
+	 */
+	Connection get(int id)
+	{
+		return stations.get(id);
+	}
+
+	int size()
+	{
+		return stations.size();
+	}
+
+	boolean isEmpty()
+	{
+		return stations.isEmpty();
+	}
+
+	/**
+	 * @return a weakly consistent iterator over the live registry.
+	 */
+	@Override
+	public Iterator<Connection> iterator()
+	{
+		return stations.values().iterator();
+	}
+
+	/**
+	 * @return every registered station. Shared, must not be modified.
+	 */
+	Connection[] snapshot()
+	{
+		int current = version.get();
+		Snapshot snapshot = cached;
+
+		if (snapshot.version != current)
+		{
+			// Read after the version, so it holds at least every change up to it.
+			snapshot = new Snapshot(current, stations.values().toArray(EMPTY));
+			cached = snapshot;
+		}
+
+		return snapshot.stations;
+	}
+}
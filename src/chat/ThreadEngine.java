@@ -0,0 +1,316 @@
+package chat;
+
+import chat.NetFrame;
+import chat.NetFrame.HDLCFrame;
+import chat.NetFrame.HDLCFrame.*;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread-per-station primary: every station runs the blocking handshake and poll/response
+ * loop of the original server on a thread of its own, so a slow or silent station only holds
+ * up itself. A message received from one station reaches the others through their lock-free
+ * queues, which wakes their threads; no lock is shared between stations.
+ *
+ * Stations run on virtual threads where the JVM has them (Java 21 and later),
+ * on small-stack platform threads otherwise. Each thread times its own station with the read
+ * timeout of its socket: a poll unanswered for T1 is sent again, up to N2 times.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+class ThreadEngine
+{
+	/**
+	 * How often, in milliseconds, the accepting thread checks whether every station has left.
+	 */
+	private static final int ACCEPT_TIMEOUT = 250;
+	/**
+	 * Stack size of a platform station thread, in bytes.
+	 * The poll loop is shallow; the default would reserve a megabyte for each station.
+	 */
+	private static final long STACK_SIZE = 256 * 1024;
+
+	private final ServerSocket serverSocket;
+	private final StationRegistry clients = new StationRegistry();
+	private final ThreadFactory threads = stationThreads();
+	/**
+	 * Backs idle stations off; only its policy and counters are used, every thread waits on its own.
+	 */
+	private final PollScheduler scheduler;
+	private SlidingWindow.Mode arqMode = SlidingWindow.Mode.GO_BACK_N;
+	private int windowSize = 0;
+	private OutboundQueue.Overflow overflow = OutboundQueue.Overflow.DROP;
+	private volatile boolean clientsConnected = false;
+
+	/**
+	 * @param pollInterval minimum delay, in milliseconds, between a station's final frame and its next poll.
+	 * @param maxPollInterval most an idle station waits for a poll, in milliseconds.
+	 */
+	ThreadEngine(int port, int pollInterval, int maxPollInterval) throws IOException
+	{
+		this.scheduler = new PollScheduler(pollInterval, maxPollInterval);
+		this.serverSocket = new ServerSocket(port);
+		serverSocket.setSoTimeout(ACCEPT_TIMEOUT);
+	}
+
+	/**
+	 * Accepts stations, each on a thread of its own.
+	 * Returns once every client that ever connected has disconnected.
+	 */
+	void run() throws IOException
+	{
+		while (!(clientsConnected && clients.isEmpty()))
+		{
+			try
+			{
+				final Connection client = new Connection(serverSocket.accept());
+				client.setOverflow(overflow);
+
+				threads.newThread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						serve(client);
+					}
+				}).start();
+			}
+			catch (SocketTimeoutException e)
+			{
+				// Time to check whether anyone is left.
+			}
+		}
+
+		System.err.println("All clients have disconnected. Terminating server.");
+		System.err.println("Poll efficiency: " + scheduler);
+		serverSocket.close();
+	}
+
+	/**
+	 * One station's thread: handshake, then poll it, relay what it sends and send it what
+	 * the others sent, until it disconnects.
+	 */
+	private void serve(Connection client)
+	{
+		client.driver = Thread.currentThread();
+
+		try
+		{
+			// A station that stops answering gets T1 per poll, rather than its thread for ever.
+			client.setReadTimeout((int) client.getTimeout());
+
+			if (!handShake(client))
+				return;
+
+			while (true)
+			{
+				// As many as the window has room for, the last one polling, the rest wait for
+				// acknowledgements. Polled right away, the acknowledgement comes back with the response.
+				// RNR while it is too far behind to take more messages from.
+				client.checkTimeout();
+				client.poll();
+				scheduler.count(client);
+
+				// A response may span several frames, e.g. a batch of messages or the segments
+				// of a long one, and ends with the frame carrying F.
+				FrameView response;
+				try
+				{
+					do
+					{
+						response = client.readView();
+						if (response == null)
+							throw new IOException("closed the connection.");
+
+						if (response.getFrameType() == Types.UFrame && response.getCC() == Commands.DISC)
+						{
+							//Client requesting clean disconnect
+							System.err.println(client.getAddress() + " requesting disconnect.");
+							NetFrame disc = new NetFrame(client.getStation(), Types.UFrame, Commands.DISC);
+							disc.setPollFinal(HDLCFrame.Final);
+							client.send(disc);
+							return;
+						}
+
+						handleResponse(client, response);
+					}
+					while (!response.isFinal());
+				}
+				catch (SocketTimeoutException e)
+				{
+					if (++client.missedPolls > PollScheduler.MAX_MISSED_POLLS)
+						throw new IOException("stopped answering polls.");
+					continue;
+				}
+				boolean spoke = response.getFrameType() == Types.IFrame;
+
+				// Wait for the next poll. Broadcasts coming in meanwhile wake the thread and go out
+				// without P as far as the window allows. They bring the poll forward, with P on the
+				// last of them, only when it would be due within minInterval of sending them anyway,
+				// and never sooner than minInterval after the last poll, or a busy room would poll
+				// each station once per broadcast.
+				long due = System.currentTimeMillis() + scheduler.backOff(client, spoke);
+				long wait;
+				while ((wait = due - System.currentTimeMillis()) > 0)
+				{
+					if (client.hasMessages())
+					{
+						long acknowledgement = System.currentTimeMillis() + scheduler.sentDelay(client);
+						if (scheduler.pollEarly(client, Math.min(due, acknowledgement)))
+							break;
+
+						if (client.sendQueued() > 0)
+						{
+							// Polled for the acknowledgement in time, however long it has been idle.
+							due = Math.min(due, acknowledgement);
+							continue;
+						}
+					}
+					LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(wait));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			System.err.println(client.getAddress() + " dropped: " + e.getMessage());
+		}
+		finally
+		{
+			clients.remove(client);
+			client.close();
+		}
+	}
+
+	/**
+	 * SNRM(E), then the station's UA.
+	 *
+	 * @return {@code false} if the station answered anything else.
+	 */
+	private boolean handShake(Connection client) throws IOException
+	{
+		// Set normal response mode
+		client.sendSetMode(arqMode, windowSize);
+
+		FrameView ua = client.readView();
+
+		if (ua == null || !(ua.getFrameType() == Types.UFrame && ua.getCC() == Commands.UA))
+		{
+			System.err.println("ERROR : Did not  UA frame from " + client.getAddress());
+			return false;
+		}
+
+		// The UA names the wire format picked and repeats the options the station takes up.
+		String accepted = ua.getInfoLength() > 0? ua.getInfo() : null;
+		client.setWireFormat(WireFormat.choose(accepted));
+		client.setFrameCheck(FrameCheck.fromOffer(accepted));
+		client.setSegmentation(Segmentation.fromOffer(accepted));
+		client.state = Connection.State.READY;
+		clients.add(client);
+		clientsConnected = true;
+
+		System.out.println("Client added " + client.getAddress());
+		return true;
+	}
+
+	/**
+	 * Handles one frame of a station's response to a poll, other than DISC.
+	 */
+	private void handleResponse(Connection client, FrameView response) throws IOException
+	{
+		if (!client.receive(response) || response.getFrameType() != Types.IFrame)
+			return; // out of sequence, REJ goes out with the next poll
+
+		broadcast(client.reassemble(response));
+
+		// Frames held back waiting for this one
+		NetFrame late;
+		while ((late = client.nextReleased()) != null)
+			broadcast(client.reassemble(late));
+	}
+
+	/**
+	 * Queues a received message for every client and wakes their threads.
+	 * It is encoded once; each client's copy only gets its own address and sequence numbers.
+	 * A station evicted for falling too far behind has its socket closed, which also frees its
+	 * thread if it is stuck waiting for a response.
+	 *
+	 * @param info {@code null} while the message is still being reassembled.
+	 */
+	private void broadcast(String info)
+	{
+		if (info == null)
+			return;
+
+		System.out.println(info);
+		Broadcast msg = new Broadcast(info);
+
+		for (Connection destinationClient : clients.snapshot())
+		{
+			if (!destinationClient.enqeue(msg) && destinationClient.isOverrun() && clients.remove(destinationClient))
+			{
+				System.err.println(destinationClient.getAddress() + " evicted: too far behind.");
+				destinationClient.close();
+			}
+			LockSupport.unpark(destinationClient.driver);
+		}
+	}
+
+	/**
+	 * Selects the retransmission strategy of connections accepted from now on.
+	 */
+	void setArqMode(SlidingWindow.Mode arqMode)
+	{
+		this.arqMode = arqMode;
+	}
+
+	/**
+	 * Sets the send window of connections accepted from now on.
+	 *
+	 * @param windowSize 0 for the largest the mode allows in modulo 8, larger windows use extended mode.
+	 */
+	void setWindowSize(int windowSize)
+	{
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Sets what becomes of stations accepted from now on once they fall too far behind.
+	 */
+	void setOverflow(OutboundQueue.Overflow overflow)
+	{
+		this.overflow = overflow;
+	}
+
+	/**
+	 * @return {@code Thread.ofVirtual().factory()} on Java 21 and later,
+	 * daemon platform threads with a small stack otherwise.
+	 */
+	private static ThreadFactory stationThreads()
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}
+		catch (ReflectiveOperationException e)
+		{
+			return new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable station)
+				{
+					Thread thread = new Thread(null, station, "station", STACK_SIZE);
+					thread.setDaemon(true);
+					return thread;
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,237 @@
+package chat;
+
+/**
+ * Hashed timing wheel: timers hang off a ring of slots, one slot per tick, and each tick only
+ * looks at its own slot. Scheduling and cancelling are O(1) whatever the number of timers,
+ * so every station can keep several of them armed without a task, or a thread, of its own.
+ * Timers are reused, so rearming one allocates nothing.
+ *
+ * A timer fires on the first {@link #advance()} at or after the tick its deadline falls in,
+ * i.e. up to one tick late. Deadlines further out than one turn of the wheel wait in their slot
+ * for the right turn.
+ *
+ * Not thread-safe: meant for the thread of a single-threaded engine, which calls {@link #advance()}
+ * from its loop and waits at most {@link #nextDelay()} in between.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+final class TimingWheel
+{
+	/**
+	 * Resolution of the wheel by default, in milliseconds. Coarser ticks fire polls in bursts,
+	 * which a loaded blocking server pays for in tail latency.
+	 */
+	static final int DEFAULT_TICK = 1;
+	/**
+	 * Slots by default, about a second a turn at the default tick: a poll interval or T1
+	 * is at most a turn or so away.
+	 */
+	static final int DEFAULT_SLOTS = 1024;
+
+	private static final int IDLE = -1, FIRING = -2;
+
+	/**
+	 * Something to do once its deadline has passed. Subclasses hold whatever it applies to.
+	 */
+	static abstract class Timer
+	{
+		private long deadline;
+		/**
+		 * Tick the deadline falls in.
+		 */
+		private long tick;
+		/**
+		 * Slot it hangs off, {@code IDLE} if it is not scheduled, {@code FIRING} once expired
+		 * and about to run.
+		 */
+		private int slot = IDLE;
+		private Timer previous, next;
+		/**
+		 * Next in the list of timers expired by the same {@link TimingWheel#advance()}.
+		 */
+		private Timer nextExpired;
+
+		/**
+		 * Runs on the wheel's thread, which it may schedule or cancel any timer from.
+		 */
+		abstract void expired();
+
+		boolean isScheduled()
+		{
+			return slot >= 0;
+		}
+
+		/**
+		 * @return when it is due, in milliseconds; meaningless once it is no longer scheduled.
+		 */
+		long getDeadline()
+		{
+			return deadline;
+		}
+	}
+
+	private final Timer[] slots;
+	private final int mask;
+	private final long tickLength;
+	/**
+	 * Last tick whose slot has been processed.
+	 */
+	private long current;
+	private int size = 0;
+
+	TimingWheel()
+	{
+		this(DEFAULT_TICK, DEFAULT_SLOTS);
+	}
+
+	/**
+	 * @param tickLength resolution, in milliseconds.
+	 * @param slots rounded up to a power of two.
+	 */
+	TimingWheel(long tickLength, int slots)
+	{
+		int length = 1;
+		while (length < slots)
+			length <<= 1;
+
+		this.slots = new Timer[length];
+		this.mask = length - 1;
+		this.tickLength = tickLength;
+		this.current = System.currentTimeMillis() / tickLength;
+	}
+
+	/**
+	 * (Re)arms a timer to fire in {@code delay} milliseconds, cancelling it first if it is already scheduled.
+	 */
+	void schedule(Timer timer, long delay)
+	{
+		cancel(timer);
+
+		timer.deadline = System.currentTimeMillis() + Math.max(0, delay);
+		// Rounded up, so it never fires early; never in a tick already processed.
+		timer.tick = Math.max(current + 1, (timer.deadline + tickLength - 1) / tickLength);
+		timer.slot = (int) timer.tick & mask;
+
+		timer.previous = null;
+		timer.next = slots[timer.slot];
+		if (timer.next != null)
+			timer.next.previous = timer;
+		slots[timer.slot] = timer;
+		size++;
+	}
+
+	/**
+	 * Disarms a timer. Cancelling one that is not scheduled does nothing; cancelling one that
+	 * has expired but not run yet keeps it from running.
+	 */
+	void cancel(Timer timer)
+	{
+		if (timer.slot == FIRING)
+		{
+			timer.slot = IDLE;
+			return;
+		}
+
+		if (timer.slot == IDLE)
+			return;
+
+		if (timer.previous == null)
+			slots[timer.slot] = timer.next;
+		else
+			timer.previous.next = timer.next;
+
+		if (timer.next != null)
+			timer.next.previous = timer.previous;
+
+		timer.previous = timer.next = null;
+		timer.slot = IDLE;
+		size--;
+	}
+
+	/**
+	 * Runs every timer whose tick has come, those of earlier ticks first.
+	 *
+	 * @return the number of timers run.
+	 */
+	int advance()
+	{
+		long now = System.currentTimeMillis() / tickLength;
+
+		if (now <= current)
+			return 0;
+
+		// After a pause of a turn or more every slot is due, each of them once.
+		long ticks = Math.min(now - current, slots.length);
+		Timer expired = null, last = null;
+
+		for (long tick = current + 1; tick <= current + ticks; tick++)
+		{
+			Timer timer = slots[(int) tick & mask];
+
+			while (timer != null)
+			{
+				Timer next = timer.next;
+
+				if (timer.tick <= now)
+				{
+					cancel(timer);
+					timer.slot = FIRING;
+					if (last == null)
+						expired = timer;
+					else
+						last.nextExpired = timer;
+					last = timer;
+				}
+				timer = next;
+			}
+		}
+		current = now;
+
+		// Run once the wheel is consistent again, as they may rearm or cancel any timer.
+		int run = 0;
+
+		while (expired != null)
+		{
+			Timer timer = expired;
+			expired = timer.nextExpired;
+			timer.nextExpired = null;
+
+			if (timer.slot != FIRING)
+				continue; // cancelled by one that ran before it
+
+			timer.slot = IDLE;
+			timer.expired();
+			run++;
+		}
+
+		return run;
+	}
+
+	/**
+	 * @return milliseconds until the next tick with a timer in its slot, {@code -1} if no timer
+	 * is scheduled. That timer may be due a turn or more later, in which case the wait is only
+	 * cut short.
+	 */
+	long nextDelay()
+	{
+		if (size == 0)
+			return -1;
+
+		long tick = current + 1;
+
+		while (slots[(int) tick & mask] == null && tick < current + slots.length)
+			tick++;
+
+		return Math.max(0, tick * tickLength - System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the number of timers scheduled.
+	 */
+	int size()
+	{
+		return size;
+	}
+}
@@ -0,0 +1,420 @@
+package chat;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The encodings a {@code NetFrame} can take on the wire.
+ * Every link starts in {@code TEXT}; the primary offers the formats it speaks in the SNRM
+ * info field and the secondary names the one it picked in its UA.
+ *
+ * @author Andréas K.LeF.
+ * @author David Alleyn
+ * @author Kent Hagerman
+ */
+enum WireFormat
+{
+	/**
+	 * One ASCII '0'/'1' character per address and control bit, followed by the info field,
+	 * one character per FCS bit if the link checks frames, and a line break.
+	 */
+	TEXT("text")
+	{
+		@Override
+		ByteBuffer encode(NetFrame frame, FrameCheck check)
+		{
+			byte[] text = frame.toString().getBytes(StandardCharsets.UTF_8);
+			ByteBuffer buffer = ByteBuffer.allocate(text.length + (check == null? 0 : FrameCheck.BITS) + 1);
+
+			buffer.put(text);
+			if (check != null)
+			{
+				check.reset();
+				check.update(text, 0, text.length);
+				putBits(buffer, check.getValue());
+			}
+			buffer.put(LINE_END);
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		SplitEncoder splitEncoder()
+		{
+			return TEXT_PIECES;
+		}
+
+		@Override
+		boolean decode(ByteBuffer buffer, FrameView view) throws ProtocolException
+		{
+			FrameCheck check = view.getFrameCheck();
+
+			for (int i = buffer.position() + view.getScanned(); i < buffer.limit(); i++)
+			{
+				if (buffer.get(i) != LINE_END)
+					continue;
+
+				int start = buffer.position();
+				int end = (i > start && buffer.get(i - 1) == '\r')? i - 1 : i;
+				buffer.position(i + 1);
+				view.setScanned(0);
+
+				if (end == start)
+					continue; // blank line, keep looking
+
+				if (check != null)
+				{
+					end -= FrameCheck.BITS;
+
+					if (end < start || check.of(buffer, start, end - start) != getBits(buffer, end))
+					{
+						view.markCorrupt();
+						return true;
+					}
+				}
+
+				view.wrapText(buffer, start, end - start);
+				return true;
+			}
+
+			// Where the next read picks up the search, the partial frame staying where it starts.
+			view.setScanned(buffer.remaining());
+			return false;
+		}
+	},
+	/**
+	 * 4-byte address, 1-byte (2 for extended I- and S-frames) control field, 2-byte info length,
+	 * the UTF-8 info field and, if the link checks frames, the 4-byte FCS.
+	 */
+	BINARY("binary")
+	{
+		@Override
+		ByteBuffer encode(NetFrame frame, FrameCheck check)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(frame.getEncodedLength() + (check == null? 0 : FrameCheck.LENGTH));
+
+			frame.encode(buffer);
+			if (check != null)
+				buffer.putInt(check.of(buffer, 0, buffer.position()));
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		SplitEncoder splitEncoder()
+		{
+			return BINARY_PIECES;
+		}
+
+		@Override
+		boolean decode(ByteBuffer buffer, FrameView view)
+		{
+			FrameCheck check = view.getFrameCheck();
+			int trailer = (check == null)? 0 : FrameCheck.LENGTH;
+
+			if (buffer.remaining() < NetFrame.HEADER_LENGTH)
+				return false;
+
+			int header = NetFrame.HEADER_LENGTH + view.controlOctets(buffer.get(buffer.position() + 4)) - 1;
+			if (buffer.remaining() < header)
+				return false;
+
+			int length = buffer.getShort(buffer.position() + header - 2) & 0xFFFF;
+			if (buffer.remaining() < header + length + trailer)
+				return false;
+
+			int start = buffer.position();
+			buffer.position(start + header + length + trailer);
+
+			if (check != null && check.of(buffer, start, header + length) != buffer.getInt(start + header + length))
+			{
+				view.markCorrupt();
+				return true;
+			}
+
+			view.wrapBinary(buffer, start);
+			return true;
+		}
+	},
+	/**
+	 * {@code BINARY} frames between HDLC flags, with a 0 inserted after every five 1 bits.
+	 * A receiver finds frame boundaries without trusting the length field, so it recovers
+	 * from a corrupted one at the next flag. Frames are stuffed whole, see {@link FlagFramer}.
+	 */
+	HDLC("hdlc")
+	{
+		@Override
+		ByteBuffer encode(NetFrame frame, FrameCheck check)
+		{
+			Broadcast shared = frame.getBroadcast();
+
+			if (shared == null)
+				return FlagFramer.frame(BINARY.encode(frame, check));
+
+			// Stuffed straight from the shared info bytes, they are not encoded again.
+			ByteBuffer header = BINARY_PIECES.encodeHeader(frame, shared.length());
+			if (check != null)
+			{
+				check.reset();
+				check.update(header);
+				shared.update(check);
+				return FlagFramer.frame(header, shared.slice(), BINARY_PIECES.encodeTrailer(check));
+			}
+
+			return FlagFramer.frame(header, shared.slice());
+		}
+
+		@Override
+		boolean decode(ByteBuffer buffer, FrameView view)
+		{
+			FlagFramer framer = view.getFramer();
+
+			while (framer.hunt(buffer))
+			{
+				int start = buffer.position();
+				int length = framer.deframe(buffer);
+
+				if (length == FlagFramer.INCOMPLETE)
+					return false;
+
+				if (length == FlagFramer.CORRUPT)
+				{
+					view.markCorrupt();
+					return true;
+				}
+
+				if (length != FlagFramer.ABORTED)
+					return wrapFlagged(buffer, start, length, view);
+			}
+
+			return false;
+		}
+	};
+
+	/**
+	 * Encodes a frame in pieces around an info field it does not encode itself,
+	 * for formats whose frames are the bytes of the info field with others on either side.
+	 */
+	interface SplitEncoder
+	{
+		/**
+		 * Encodes everything ahead of the info field.
+		 *
+		 * @param infoLength size of that info field, in bytes.
+		 * @return a buffer ready to be written.
+		 */
+		ByteBuffer encodeHeader(NetFrame frame, int infoLength);
+
+		/**
+		 * Encodes everything after the info field.
+		 *
+		 * @param check fed with every byte of the frame so far, {@code null} if the link does not check frames.
+		 * @return a buffer ready to be written, {@code null} if there is nothing to add.
+		 */
+		ByteBuffer encodeTrailer(FrameCheck check);
+	}
+
+	/**
+	 * Ends every {@code TEXT} frame.
+	 */
+	static final byte LINE_END = '\n';
+	private static final ByteBuffer LINE_BREAK = ByteBuffer.wrap(new byte[] {LINE_END});
+	private static final String SEPARATOR = ",";
+
+	private static final SplitEncoder TEXT_PIECES = new SplitEncoder()
+	{
+		@Override
+		public ByteBuffer encodeHeader(NetFrame frame, int infoLength)
+		{
+			return ByteBuffer.wrap(frame.headerString().getBytes(StandardCharsets.US_ASCII));
+		}
+
+		@Override
+		public ByteBuffer encodeTrailer(FrameCheck check)
+		{
+			if (check == null)
+				return LINE_BREAK.duplicate();
+
+			ByteBuffer buffer = ByteBuffer.allocate(FrameCheck.BITS + 1);
+			putBits(buffer, check.getValue());
+			buffer.put(LINE_END);
+			buffer.flip();
+			return buffer;
+		}
+	};
+
+	private static final SplitEncoder BINARY_PIECES = new SplitEncoder()
+	{
+		@Override
+		public ByteBuffer encodeHeader(NetFrame frame, int infoLength)
+		{
+			ByteBuffer buffer = ByteBuffer.allocate(frame.getHeaderLength());
+			frame.encodeHeader(buffer, infoLength);
+			buffer.flip();
+			return buffer;
+		}
+
+		@Override
+		public ByteBuffer encodeTrailer(FrameCheck check)
+		{
+			if (check == null)
+				return null;
+
+			ByteBuffer buffer = ByteBuffer.allocate(FrameCheck.LENGTH);
+			buffer.putInt(check.getValue());
+			buffer.flip();
+			return buffer;
+		}
+	};
+
+	private final String name;
+
+	private WireFormat(String name)
+	{
+		this.name = name;
+	}
+
+	/**
+	 * Encodes a frame for this format, broadcast copies included.
+	 *
+	 * @param check the link's FCS, {@code null} if it does not check frames.
+	 * @return a buffer ready to be written.
+	 */
+	abstract ByteBuffer encode(NetFrame frame, FrameCheck check);
+
+	/**
+	 * @return how to write a broadcast copy from a header, the shared info bytes and a trailer,
+	 * {@code null} if this format must encode it whole with {@link #encode(NetFrame, FrameCheck)}.
+	 */
+	SplitEncoder splitEncoder()
+	{
+		return null;
+	}
+
+	/**
+	 * Points a view at the next frame in a buffer in read mode, consuming its bytes.
+	 * The buffer contents are left in place for the view to read.
+	 * A frame failing the view's FCS is consumed and only marks the view corrupt.
+	 *
+	 * @return {@code false} if the buffer does not hold a complete frame yet.
+	 */
+	abstract boolean decode(ByteBuffer buffer, FrameView view) throws ProtocolException;
+
+	/**
+	 * @return the list of formats a primary offers in its SNRM.
+	 */
+	static String offer()
+	{
+		StringBuilder offer = new StringBuilder();
+
+		for (WireFormat format : values())
+		{
+			if (offer.length() > 0)
+				offer.append(SEPARATOR);
+			offer.append(format.name);
+		}
+
+		return offer.toString();
+	}
+
+	/**
+	 * Picks the format this end prefers in an SNRM offer: the last one it knows, so {@code HDLC}
+	 * over the more compact {@code BINARY}, which cannot find its way back after a corrupted length.
+	 * Also reads the format a UA names, since it names only one.
+	 *
+	 * @param offer the SNRM or UA info field, {@code null} for peers that name nothing.
+	 */
+	static WireFormat choose(String offer)
+	{
+		WireFormat chosen = TEXT;
+
+		if (offer == null)
+			return chosen;
+
+		for (String name : offer.split(SEPARATOR))
+		{
+			WireFormat format = forName(name.trim());
+			if (format.ordinal() > chosen.ordinal())
+				chosen = format;
+		}
+
+		return chosen;
+	}
+
+	/**
+	 * @return the format with that name, {@code TEXT} when the name is missing or unknown.
+	 */
+	static WireFormat forName(String name)
+	{
+		for (WireFormat format : values())
+		{
+			if (format.name.equals(name))
+				return format;
+		}
+
+		return TEXT;
+	}
+
+	/**
+	 * Points a view at a binary frame taken from between two flags, unless its length field
+	 * disagrees with the flags or it fails the view's FCS.
+	 *
+	 * @param start absolute index of the first address byte.
+	 * @param length of the frame, FCS included.
+	 * @return {@code true}, the frame is consumed either way.
+	 */
+	private static boolean wrapFlagged(ByteBuffer buffer, int start, int length, FrameView view)
+	{
+		FrameCheck check = view.getFrameCheck();
+		int trailer = (check == null)? 0 : FrameCheck.LENGTH;
+
+		if (length >= NetFrame.HEADER_LENGTH)
+		{
+			int header = NetFrame.HEADER_LENGTH + view.controlOctets(buffer.get(start + 4)) - 1;
+			int info = length - header - trailer;
+
+			if (info >= 0 && (buffer.getShort(start + header - 2) & 0xFFFF) == info
+					&& (check == null || check.of(buffer, start, header + info) == buffer.getInt(start + header + info)))
+			{
+				view.wrapBinary(buffer, start);
+				return true;
+			}
+		}
+
+		view.markCorrupt();
+		return true;
+	}
+
+	/**
+	 * Writes 32 bits as '0'/'1' characters, most significant first.
+	 */
+	private static void putBits(ByteBuffer buffer, int bits)
+	{
+		for (int i = 31; i >= 0; i--)
+		{
+			buffer.put(((bits >>> i) & 1) == 1? (byte) '1' : (byte) '0');
+		}
+	}
+
+	/**
+	 * Reads 32 '0'/'1' characters from an absolute index.
+	 */
+	private static int getBits(ByteBuffer buffer, int offset)
+	{
+		int bits = 0;
+
+		for (int i = offset; i < offset + 32; i++)
+		{
+			bits = (bits << 1) | (buffer.get(i) == '1'? 1 : 0);
+		}
+
+		return bits;
+	}
+
+	@Override
+	public String toString()
+	{
+		return name;
+	}
+}